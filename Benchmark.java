@@ -0,0 +1,434 @@
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks for the hot paths of the editor and server.
+ * Each case is warmed up and then run repeatedly on one thread, reporting the time and the bytes
+ * allocated per operation as one tab-separated line (name, ns/op, B/op), so runs can be diffed.
+ *
+ * Lines starting with "#" are notes rather than results. Inputs are fixed (no unseeded randomness), so two runs
+ * differ only by the machine and the code.
+ *
+ * Usage: java Benchmark [name-prefix ...]  -- runs every case, or those whose names start with a prefix
+ */
+public class Benchmark {
+	private static final long warmupNanos = 1_000_000_000L;		// per case, before measuring
+	private static final long measureNanos = 2_000_000_000L;	// per case
+	private static final int batch = 1000;						// operations between clock checks
+
+	private static com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static String[] prefixes;							// which cases to run (all if empty)
+	private static long blackhole;								// keeps results from being optimized away
+
+	/**
+	 * One operation to be timed
+	 */
+	public interface Op {
+		public void run() throws Exception;
+	}
+
+	/**
+	 * Times op (if selected) and prints its line
+	 */
+	public static void measure(String name, Op op) throws Exception {
+		measure(name, batch, op);
+	}
+
+	/**
+	 * Times op (if selected), checking the clock every batch operations, and prints its line
+	 */
+	public static void measure(String name, int batch, Op op) throws Exception {
+		if (!selected(name)) return;
+
+		long start = System.nanoTime();
+		while (System.nanoTime() - start < warmupNanos) {
+			for (int i = 0; i < batch; i++) op.run();
+		}
+
+		long thread = Thread.currentThread().getId();
+		long ops = 0;
+		long bytesBefore = threads.getThreadAllocatedBytes(thread);
+		start = System.nanoTime();
+		long elapsed;
+		do {
+			for (int i = 0; i < batch; i++) op.run();
+			ops += batch;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < measureNanos);
+		long bytes = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+
+		System.out.printf("%-40s\t%12.1f\t%10.1f%n", name, (double) elapsed / ops, (double) bytes / ops);
+	}
+
+	/**
+	 * Whether the case was asked for
+	 */
+	private static boolean selected(String name) {
+		if (prefixes.length == 0) return true;
+		for (String prefix : prefixes) {
+			if (name.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Whether any case in the group (names starting with it) may have been asked for
+	 */
+	private static boolean groupSelected(String group) {
+		if (prefixes.length == 0) return true;
+		for (String prefix : prefixes) {
+			if (prefix.startsWith(group) || group.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Decoding requests into a sketch with one reused MessageHandler (as every connection now does)
+	 */
+	private static void decode() throws Exception {
+		Sketch sketch = new Sketch();
+		MessageHandler handler = new MessageHandler(sketch);
+		handler.decode("add 1 1 ellipse 10 10 50 50 -16777216");
+
+		String[] moves = {"move 1 3 -2", "move 1 -3 2"};
+		int[] i = {0};
+		measure("decode.move", () -> handler.decode(moves[i[0]++ & 1]));
+
+		String[] recolors = {"recolor 1 -65536", "recolor 1 -16776961"};
+		measure("decode.recolor", () -> handler.decode(recolors[i[0]++ & 1]));
+
+		measure("decode.add.ellipse", () -> handler.decode("add 2 2 ellipse 100 100 150 180 -16777216"));
+		measure("decode.add.rectangle", () -> handler.decode("add 2 2 rectangle 100 100 150 180 -16777216"));
+		measure("decode.add.segment", () -> handler.decode("add 2 2 segment 100 100 150 180 -16777216"));
+		// with the add it undoes, so there is always something to delete
+		measure("decode.delete", () -> {
+			handler.decode("add 5 5 rectangle 100 100 150 180 -16777216");
+			handler.decode("delete 5");
+		});
+
+		String polyline = polylineAdd(3, 1000);
+		measure("decode.add.polyline.1000", () -> handler.decode(polyline));
+		String largePolyline = polylineAdd(3, 100_000);
+		measure("decode.add.polyline.100000", 1, () -> handler.decode(largePolyline));
+		byte[] polylineFrame = frame(polyline);
+		measure("decode.add.polyline.1000.binary", () -> handler.decode(polylineFrame, 0, polylineFrame.length));
+		byte[] moveFrame = frame("move 1 3 -2"), moveBackFrame = frame("move 1 -3 2");
+		measure("decode.move.binary", () -> {
+			byte[] f = (i[0]++ & 1) == 0 ? moveFrame : moveBackFrame;
+			handler.decode(f, 0, f.length);
+		});
+
+		StringBuilder append = new StringBuilder("append 4");
+		for (int p = 0; p < 64; p++) append.append(' ').append(200 + p % 10).append(' ').append(200 + p % 7);
+		String appendLine = append.toString();
+		handler.decode("stroke 4 4 200 200 -16777216");
+		measure("decode.append.64", () -> {
+			// start the stroke over now and then, so it doesn't grow without bound
+			if ((i[0]++ & 1023) == 0) handler.decode("stroke 4 4 200 200 -16777216");
+			handler.decode(appendLine);
+		});
+
+		// straight off the socket's bytes, as EditorCommunicator reads them
+		byte[] stream = ("move 1 3 -2\nmove 1 -3 2\n".repeat(batch)).getBytes(StandardCharsets.US_ASCII);
+		LineReader[] reader = {new LineReader(new ByteArrayInputStream(stream))};
+		measure("decode.move.linereader", () -> {
+			CharSequence line = reader[0].readLine();
+			if (line == null) {
+				reader[0] = new LineReader(new ByteArrayInputStream(stream));
+				line = reader[0].readLine();
+			}
+			handler.decode(line);
+		});
+
+		// for comparison: just the tokenizing the old decoder did, before touching the sketch
+		measure("decode.move.split-baseline", () -> {
+			String[] msg = moves[i[0]++ & 1].split(" ");
+			blackhole += Integer.parseInt(msg[1]) + Integer.parseInt(msg[2]) + Integer.parseInt(msg[3]);
+		});
+	}
+
+	/**
+	 * Encoding requests as binary frames (as each message broadcast to binary clients is, once)
+	 */
+	private static void encode() throws Exception {
+		BinaryCodec codec = new BinaryCodec();
+		String polyline = polylineAdd(3, 1000);
+		codec.encode(polyline);
+		if (selected("encode")) System.out.printf("# polyline.1000 on the wire: %d bytes as text, %d as a frame%n", polyline.length() + 1, codec.size());
+		measure("encode.add.polyline.1000", () -> {
+			codec.reset();
+			codec.encode(polyline);
+		});
+		measure("encode.move", () -> {
+			codec.reset();
+			codec.encode("move 1 3 -2");
+		});
+
+		// the text form of each kind of shape, as every add broadcast and every joiner's state is built
+		Sketch sketch = new Sketch();
+		MessageHandler handler = new MessageHandler(sketch);
+		handler.decode("add 1 1 ellipse 100 100 150 180 -16777216");
+		handler.decode("add 2 2 rectangle 100 100 150 180 -16777216");
+		handler.decode("add 3 3 segment 100 100 150 180 -16777216");
+		handler.decode(polylineAdd(4, 1000));
+		String[] kinds = {"ellipse", "rectangle", "segment", "polyline.1000"};
+		for (int k = 0; k < kinds.length; k++) {
+			Shape shape = sketch.getShape(k + 1);
+			measure("encode.tostring." + kinds[k], () -> blackhole += shape.toString().length());
+		}
+	}
+
+	/**
+	 * Painting a board of 2000 shapes, all of it and just the area a dragged shape touches
+	 */
+	private static void draw() throws Exception {
+		Sketch sketch = new Sketch();
+		MessageHandler handler = new MessageHandler(sketch);
+		for (int id = 1; id <= 2000; id++) {
+			int x = (id * 37) % 760, y = (id * 91) % 760;
+			handler.decode("add " + id + " " + id + " ellipse " + x + " " + y + " " + (x + 30) + " " + (y + 20) + " -16777216");
+		}
+		BufferedImage image = new BufferedImage(800, 800, BufferedImage.TYPE_INT_RGB);
+		Graphics g = image.getGraphics();
+		measure("draw.board.2000", () -> sketch.draw(g));
+		g.setClip(390, 390, 50, 40);
+		measure("draw.board.2000.dirty-region", () -> sketch.draw(g));
+
+		// as the editor paints during a drag: the rest of the board from its offscreen layer, the moved shape live
+		g.setClip(null);
+		BufferedImage layer = new BufferedImage(800, 800, BufferedImage.TYPE_INT_ARGB);
+		Graphics lg = layer.getGraphics();
+		sketch.draw(lg, 1000);
+		lg.dispose();
+		Shape moving = sketch.getShape(1000);
+		measure("draw.board.2000.layered", () -> {
+			g.drawImage(layer, 0, 0, null);
+			moving.draw(g);
+		});
+
+		// painting and hit testing while another thread applies a stream of remote moves, as the editor does
+		measure("draw.hit-test", () -> blackhole += sketch.topMostShapeAt(400, 400));
+		AtomicBoolean stop = new AtomicBoolean(false);
+		Thread remote = new Thread(() -> {
+			MessageHandler network = new MessageHandler(sketch);
+			for (int m = 0; !stop.get(); m++) network.decode((m & 1) == 0 ? "move 500 3 -2" : "move 500 -3 2");
+		});
+		remote.setDaemon(true);
+		remote.start();
+		g.setClip(390, 390, 50, 40);
+		measure("draw.board.2000.dirty-region.remote-moves", () -> sketch.draw(g));
+		measure("draw.hit-test.remote-moves", () -> blackhole += sketch.topMostShapeAt(400, 400));
+		stop.set(true);
+		remote.join();
+	}
+
+	/**
+	 * Drawing and hit testing as boards grow: 1k, 10k and 100k shapes, spread at the same density
+	 * (about 2000 per 800x800 window) so that a window's worth of them is always in view
+	 */
+	private static void scale() throws Exception {
+		if (!groupSelected("sketch")) return;
+		BufferedImage image = new BufferedImage(800, 800, BufferedImage.TYPE_INT_RGB);
+		Graphics g = image.getGraphics();
+		for (int n : new int[] {1_000, 10_000, 100_000}) {
+			Sketch sketch = new Sketch();
+			MessageHandler handler = new MessageHandler(sketch);
+			int side = (int) (800 * Math.sqrt(n / 2000.0));
+			Random random = new Random(n);
+			for (int id = 1; id <= n; id++) {
+				int x = random.nextInt(side), y = random.nextInt(side);
+				handler.decode("add " + id + " " + id + " " + (id % 3 == 0 ? "rectangle " : "ellipse ")
+						+ x + " " + y + " " + (x + 10 + random.nextInt(40)) + " " + (y + 10 + random.nextInt(30)) + " -16777216");
+			}
+			int[][] points = new int[1024][2];
+			for (int[] p : points) {
+				p[0] = random.nextInt(Math.min(side, 800));
+				p[1] = random.nextInt(Math.min(side, 800));
+			}
+			int[] i = {0};
+			measure("sketch.hit-test." + n, () -> {
+				int[] p = points[i[0]++ & 1023];
+				blackhole += sketch.topMostShapeAt(p[0], p[1]);
+			});
+			g.setClip(0, 0, 800, 800);
+			measure("sketch.draw.window." + n, 1, () -> sketch.draw(g));
+			g.setClip(null);
+			measure("sketch.draw.all." + n, 1, () -> sketch.draw(g));
+		}
+		g.dispose();
+	}
+
+	/**
+	 * A client connection that keeps what it is sent in memory, as a communicator's outbound queue does,
+	 * with a writer that keeps up (it takes the bytes of each message, and the oldest goes when the queue is full)
+	 */
+	private static class MemoryConnection implements ClientConnection {
+		private final ArrayBlockingQueue<Message> outbound = new ArrayBlockingQueue<Message>(1024);
+		private final boolean binary;
+
+		MemoryConnection(boolean binary) {
+			this.binary = binary;
+		}
+
+		public void send(Message msg) {
+			blackhole += binary ? msg.frames().length : msg.bytes().length;
+			if (!outbound.offer(msg)) {
+				outbound.poll();
+				outbound.offer(msg);
+			}
+		}
+
+		public boolean isOpen() {
+			return true;
+		}
+
+		public int getQueueDepth() {
+			return outbound.size();
+		}
+	}
+
+	/**
+	 * Broadcasting a request to every client on a board (half of them binary), as the sequencer does for each
+	 */
+	private static void fanout() throws Exception {
+		if (!groupSelected("fanout")) return;
+		for (int n : new int[] {10, 100, 1000}) {
+			SketchServer server = new SketchServer(null, 1);
+			Board board = server.board("bench-" + n);
+			for (int c = 0; c < n; c++) board.join(new MemoryConnection((c & 1) == 1));
+			while (board.getClientCount() < n) Thread.sleep(1);
+			int[] i = {0};
+			measure("fanout.broadcast.move." + n, 10, () -> board.broadcast("@1:" + ++i[0] + " move 1 3 -2"));
+		}
+	}
+
+	/**
+	 * Appending to the durable op log (as the sequencer does for every request), and replaying it
+	 */
+	private static void log() throws Exception {
+		if (!groupSelected("log")) return;
+		Path dir = Files.createTempDirectory("oplog");
+		try {
+			for (OpLog.FsyncPolicy policy : OpLog.FsyncPolicy.values()) {
+				String name = "log.append.move." + policy.name().toLowerCase();
+				if (!selected(name)) continue;
+				// a new log every million requests or so, so the benchmark doesn't fill the disk
+				OpLog[] log = {null};
+				int[] i = {0};
+				measure(name, () -> {
+					if ((i[0]++ & 0xfffff) == 0) {
+						if (log[0] != null) log[0].close();
+						deleteAll(dir);
+						log[0] = new OpLog(dir, 16 << 20, policy, 20, null);
+					}
+					log[0].append((i[0] & 1) == 0 ? "move 1 3 -2" : "move 1 -3 2");
+				});
+				System.out.printf("# %s: %d forces in the last %d appends%n", name, log[0].getForceCount(), log[0].size());
+				log[0].close();
+				deleteAll(dir);
+			}
+
+			// a board's history: 1000 shapes added, then 100 moves each
+			int shapes = 1000, moves = 100;
+			try (OpLog log = new OpLog(dir, OpLog.defaultSegmentSize, OpLog.FsyncPolicy.NONE, 0, null)) {
+				for (int id = 1; id <= shapes; id++) {
+					log.append("add " + id + " " + id + " ellipse " + id % 700 + " " + id % 500 + " " + (id % 700 + 40) + " " + (id % 500 + 30) + " -16777216");
+				}
+				for (int m = 0; m < moves * shapes; m++) {
+					log.append("move " + (m % shapes + 1) + " " + (m % 5 - 2) + " " + (m % 3 - 1));
+				}
+			}
+			long requests = shapes + (long) moves * shapes;
+			measure("log.replay." + requests, 1, () -> {
+				Sketch sketch = new Sketch();
+				MessageHandler handler = new MessageHandler(sketch);
+				try (OpLog log = new OpLog(dir, OpLog.defaultSegmentSize, OpLog.FsyncPolicy.NONE, 0, handler::decode)) {
+					blackhole += log.size() + sketch.getShapeCount();
+				}
+			});
+
+			// the same board (and ten times as many shapes) from a snapshot instead
+			for (int n : new int[] {shapes, 10 * shapes}) {
+				Sketch board = new Sketch();
+				MessageHandler builder = new MessageHandler(board);
+				for (int id = 1; id <= n; id++) {
+					builder.decode(id % 10 == 0 ? polylineAdd(id, 100)
+							: "add " + id + " " + id + " ellipse " + id % 700 + " " + id % 500 + " " + (id % 700 + 40) + " " + (id % 500 + 30) + " -16777216");
+				}
+				deleteAll(dir);
+				Sketch.Snapshot snapshot = board.snapshot();
+				long bytes = SnapshotFile.write(dir, 1, snapshot);
+				if (selected("log.snapshot")) System.out.printf("# snapshot of %d shapes: %d bytes%n", n, bytes);
+				measure("log.snapshot.write." + n, 1, () -> blackhole += SnapshotFile.write(dir, 1, snapshot));
+				measure("log.snapshot.load." + n, 1, () -> {
+					Sketch sketch = new Sketch();
+					blackhole += SnapshotFile.loadLatest(dir, new MessageHandler(sketch)) + sketch.getShapeCount();
+				});
+			}
+		}
+		finally {
+			deleteAll(dir);
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Deletes the files in dir
+	 */
+	private static void deleteAll(Path dir) throws Exception {
+		try (Stream<Path> files = Files.list(dir)) {
+			for (Path f : (Iterable<Path>) files::iterator) Files.delete(f);
+		}
+	}
+
+	/**
+	 * The request as a binary frame, without its length prefix
+	 */
+	static byte[] frame(String request) {
+		BinaryCodec codec = new BinaryCodec();
+		codec.encode(request);
+		byte[] f = codec.toByteArray();
+		int prefix = 1;
+		while (f[prefix-1] < 0) prefix++;
+		return java.util.Arrays.copyOfRange(f, prefix, f.length);
+	}
+
+	/**
+	 * An add request for a freehand polyline of the given number of segments
+	 */
+	static String polylineAdd(int id, int segments) {
+		Polyline line = new Polyline(100, 100, Color.black);
+		int x = 100, y = 100;
+		for (int s = 0; s < segments; s++) {
+			x += (s * 7) % 5 - 2;
+			y += (s * 3) % 5 - 2;
+			line.addPoint(x, y);
+		}
+		return "add " + id + " " + id + " " + line;
+	}
+
+	public static void main(String[] args) throws Exception {
+		prefixes = args;
+		System.out.printf("# java %s on %s, %d processors%n", System.getProperty("java.version"),
+				System.getProperty("os.arch"), Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-40s\t%12s\t%10s%n", "benchmark", "ns/op", "B/op");
+		decode();
+		encode();
+		draw();
+		scale();
+		fanout();
+		log();
+		if (blackhole == 42) System.out.println();
+	}
+}
@@ -0,0 +1,474 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The compact binary form of the protocol, which a client may ask for instead of text lines.
+ *
+ * A client asks by sending the line "binary"; everything it sends after that line is frames.
+ * The other end answers with the same line, and everything it sends after its answer is frames too.
+ * A frame is one request: its length (varint), an opcode byte, then the request's fields, with
+ * ids and counts as varints, coordinates as zigzag varints, and colors as 4 bytes.
+ * Polylines are sent as runs of joints, each joint after the first as its offset from the one before,
+ * so a freehand stroke costs about 2 bytes per mouse sample rather than a whole "segment ..." of text.
+ * A line this doesn't know how to pack goes as a TEXT frame.
+ *
+ * An instance encodes into a growing buffer of its own, and reads one frame at a time; not thread-safe.
+ */
+public class BinaryCodec {
+	public static final String HELLO = "binary";					// the line switching a connection to frames
+	public static final byte[] HELLO_LINE = (HELLO + "\n").getBytes(StandardCharsets.US_ASCII);
+	public static final int maxFrame = 1 << 24;						// longest frame a reader accepts
+
+	// opcodes
+	public static final byte TEXT = 0, ADD = 1, MOVE = 2, RECOLOR = 3, DELETE = 4, STROKE = 5, APPEND = 6, END = 7, CLEAR = 8;
+	public static final byte TAG = 9;	// "@client:seq" in front of a request: client and seq, then the rest of the frame
+	public static final byte STAMP = 10;	// " %micros" after a tag, when tracing (see Tracer): the time, as a varlong
+	// kinds of shape in an ADD
+	public static final byte ELLIPSE = 1, RECTANGLE = 2, SEGMENT = 3, POLYLINE = 4;
+
+	private byte[] out = new byte[256];		// encoded frames
+	private int size = 0;					// bytes used in out
+
+	private CharSequence line;				// text being encoded, and the position in it
+	private int pos, end;
+	private int[] joints = new int[64];		// polyline being encoded: its joints (x, y pairs)
+	private int[] runs = new int[8];		// ... and the number of joints in each connected run
+
+	private byte[] frame;					// frame being read, and the position in it
+	private int in, frameEnd;
+
+	/**
+	 * Whether the line is the request (or answer) to switch to frames
+	 */
+	public static boolean isHello(CharSequence line) {
+		return HELLO.contentEquals(line);
+	}
+
+	/**
+	 * Empties the output buffer
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+	/**
+	 * The frames encoded since the last reset are buffer()[0 .. size())
+	 */
+	public byte[] buffer() {
+		return out;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(out, size);
+	}
+
+	/**
+	 * Encodes each line of a message (lines separated by '\n') as a frame
+	 */
+	public void encodeLines(String text) {
+		int from = 0;
+		while (from <= text.length()) {
+			int to = text.indexOf('\n', from);
+			if (to < 0) to = text.length();
+			if (to > from) encode(text.subSequence(from, to));
+			from = to + 1;
+		}
+	}
+
+	/**
+	 * Encodes one request line as a frame, appended to the output
+	 */
+	public void encode(CharSequence request) {
+		int frameStart = size;
+		size += 5; // room for the longest length prefix; moved down over the gap once the length is known
+		line = request;
+		pos = 0;
+		end = request.length();
+		try {
+			pack();
+		}
+		catch (RuntimeException e) {
+			// not something we know how to pack: send it as it is
+			size = frameStart + 5;
+			writeByte(TEXT);
+			byte[] text = request.toString().getBytes(StandardCharsets.UTF_8);
+			ensure(text.length);
+			System.arraycopy(text, 0, out, size, text.length);
+			size += text.length;
+		}
+		line = null;
+
+		int length = size - frameStart - 5;
+		int prefix = varintSize(length);
+		System.arraycopy(out, frameStart + 5, out, frameStart + prefix, length);
+		size = frameStart;
+		writeVarint(length);
+		size += length;
+	}
+
+	/**
+	 * Writes the binary form of the request being encoded, or throws if it has none
+	 */
+	private void pack() {
+		while (hasMore() && line.charAt(pos) == '@') {
+			pos++;
+			int client = 0, seq = nextInt();
+			if (pos < end && line.charAt(pos) == ':') {
+				pos++;
+				client = seq;
+				seq = nextInt();
+			}
+			writeByte(TAG);
+			writeVarint(client);
+			writeVarint(seq);
+			while (hasMore() && line.charAt(pos) == '%') {
+				pos++;
+				writeByte(STAMP);
+				writeVarlong(nextLong());
+			}
+		}
+		if (!hasMore()) {
+			// nothing but tags
+		}
+		else if (word("add")) {
+			writeByte(ADD);
+			writeVarint(nextInt());
+			writeVarint(nextInt());
+			byte kind = word("ellipse") ? ELLIPSE : word("rectangle") ? RECTANGLE : word("segment") ? SEGMENT
+					: word("polyline") ? POLYLINE : 0;
+			if (kind == 0) throw new IllegalArgumentException("unknown shape");
+			writeByte(kind);
+			if (kind == POLYLINE) packPolyline();
+			else {
+				for (int i = 0; i < 4; i++) writeSigned(nextInt());
+				writeColor(nextInt());
+			}
+		}
+		else if (word("move")) {
+			writeByte(MOVE);
+			writeVarint(nextInt());
+			writeSigned(nextInt());
+			writeSigned(nextInt());
+		}
+		else if (word("recolor")) {
+			writeByte(RECOLOR);
+			writeVarint(nextInt());
+			writeColor(nextInt());
+		}
+		else if (word("delete")) {
+			writeByte(DELETE);
+			writeVarint(nextInt());
+		}
+		else if (word("stroke")) {
+			writeByte(STROKE);
+			writeVarint(nextInt());
+			writeVarint(nextInt());
+			writeSigned(nextInt());
+			writeSigned(nextInt());
+			writeColor(nextInt());
+		}
+		else if (word("append")) {
+			writeByte(APPEND);
+			writeVarint(nextInt());
+			int n = 0;
+			while (hasMore()) {
+				if (n == joints.length) joints = Arrays.copyOf(joints, n * 2);
+				joints[n++] = nextInt();
+			}
+			if (n % 2 != 0) throw new IllegalArgumentException("odd number of coordinates");
+			writeVarint(n / 2);
+			writeJoints(0, n / 2);
+		}
+		else if (word("end")) {
+			writeByte(END);
+			writeVarint(nextInt());
+		}
+		else if (word("clear")) {
+			writeByte(CLEAR);
+		}
+		else {
+			throw new IllegalArgumentException("unknown request");
+		}
+		if (hasMore()) throw new IllegalArgumentException("extra words");
+	}
+
+	/**
+	 * "segment x1 y1 x2 y2 rgb ... rgb" as the color and the runs of connected joints
+	 */
+	private void packPolyline() {
+		int n = 0, numRuns = 0, color = 0;
+		while (word("segment")) {
+			int x1 = nextInt(), y1 = nextInt(), x2 = nextInt(), y2 = nextInt();
+			color = nextInt();
+			if (n + 4 > joints.length) joints = Arrays.copyOf(joints, joints.length * 2);
+			if (n == 0 || joints[n-2] != x1 || joints[n-1] != y1) {
+				// not joined to the segment before: a new run
+				if (numRuns == runs.length) runs = Arrays.copyOf(runs, numRuns * 2);
+				runs[numRuns++] = 1;
+				joints[n++] = x1;
+				joints[n++] = y1;
+			}
+			joints[n++] = x2;
+			joints[n++] = y2;
+			runs[numRuns-1]++;
+		}
+		if (n == 0) throw new IllegalArgumentException("polyline without segments");
+		writeColor(nextInt());
+		writeVarint(numRuns);
+		int joint = 0;
+		for (int r = 0; r < numRuns; r++) {
+			writeVarint(runs[r]);
+			writeJoints(joint, runs[r]);
+			joint += runs[r];
+		}
+	}
+
+	/**
+	 * Writes count joints from joints[], the first as it is and the rest as offsets from the one before
+	 */
+	private void writeJoints(int first, int count) {
+		int px = 0, py = 0;
+		for (int j = first; j < first + count; j++) {
+			int x = joints[2*j], y = joints[2*j+1];
+			writeSigned(x - px);
+			writeSigned(y - py);
+			px = x;
+			py = y;
+		}
+	}
+
+	/**
+	 * Starts reading a frame (without its length prefix)
+	 */
+	public void setFrame(byte[] buf, int offset, int length) {
+		frame = buf;
+		in = offset;
+		frameEnd = offset + length;
+	}
+
+	/**
+	 * Whether the frame has more fields
+	 */
+	public boolean hasMoreFields() {
+		return in < frameEnd;
+	}
+
+	/**
+	 * Number of bytes of the frame not read yet
+	 */
+	public int remaining() {
+		return frameEnd - in;
+	}
+
+	public byte readByte() {
+		if (in >= frameEnd) throw new IllegalArgumentException("frame too short");
+		return frame[in++];
+	}
+
+	public int readVarint() {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = readByte();
+			value |= (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IllegalArgumentException("varint too long");
+	}
+
+	public long readVarlong() {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IllegalArgumentException("varlong too long");
+	}
+
+	public int readSigned() {
+		int v = readVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	public int readColor() {
+		return (readByte() & 0xff) << 24 | (readByte() & 0xff) << 16 | (readByte() & 0xff) << 8 | (readByte() & 0xff);
+	}
+
+	/**
+	 * The rest of the frame, as text (for a TEXT frame)
+	 */
+	public String readText() {
+		String text = new String(frame, in, frameEnd - in, StandardCharsets.UTF_8);
+		in = frameEnd;
+		return text;
+	}
+
+	/**
+	 * The request a frame stands for, as the text line the client would have sent instead
+	 */
+	public String toText(byte[] buf, int offset, int length) {
+		setFrame(buf, offset, length);
+		StringBuilder text = new StringBuilder();
+		byte opcode = readByte();
+		while (opcode == TAG) {
+			int client = readVarint(), seq = readVarint();
+			if (text.length() > 0) text.append(' ');
+			text.append('@');
+			if (client != 0) text.append(client).append(':');
+			text.append(seq);
+			if (!hasMoreFields()) return text.toString();
+			opcode = readByte();
+			while (opcode == STAMP) {
+				text.append(" %").append(readVarlong());
+				if (!hasMoreFields()) return text.toString();
+				opcode = readByte();
+			}
+		}
+		if (text.length() > 0) text.append(' ');
+		switch (opcode) {
+			case TEXT -> text.append(readText());
+			case ADD -> {
+				text.append("add ").append(readVarint()).append(' ').append(readVarint());
+				byte kind = readByte();
+				switch (kind) {
+					case ELLIPSE -> text.append(" ellipse");
+					case RECTANGLE -> text.append(" rectangle");
+					case SEGMENT -> text.append(" segment");
+					case POLYLINE -> text.append(" polyline");
+					default -> throw new IllegalArgumentException("unknown shape " + kind);
+				}
+				if (kind == POLYLINE) {
+					int color = readColor();
+					int numRuns = readVarint();
+					for (int r = 0; r < numRuns; r++) {
+						int count = readVarint();
+						int x = readSigned(), y = readSigned();
+						for (int j = 1; j < count; j++) {
+							int nx = x + readSigned(), ny = y + readSigned();
+							text.append(" segment ").append(x).append(' ').append(y).append(' ')
+									.append(nx).append(' ').append(ny).append(' ').append(color);
+							x = nx;
+							y = ny;
+						}
+					}
+					text.append(' ').append(color);
+				}
+				else {
+					for (int i = 0; i < 4; i++) text.append(' ').append(readSigned());
+					text.append(' ').append(readColor());
+				}
+			}
+			case MOVE -> text.append("move ").append(readVarint()).append(' ').append(readSigned()).append(' ').append(readSigned());
+			case RECOLOR -> text.append("recolor ").append(readVarint()).append(' ').append(readColor());
+			case DELETE -> text.append("delete ").append(readVarint());
+			case STROKE -> text.append("stroke ").append(readVarint()).append(' ').append(readVarint())
+					.append(' ').append(readSigned()).append(' ').append(readSigned()).append(' ').append(readColor());
+			case APPEND -> {
+				text.append("append ").append(readVarint());
+				int count = readVarint();
+				int x = 0, y = 0;
+				for (int j = 0; j < count; j++) {
+					x += readSigned();
+					y += readSigned();
+					text.append(' ').append(x).append(' ').append(y);
+				}
+			}
+			case END -> text.append("end ").append(readVarint());
+			case CLEAR -> text.append("clear");
+			default -> throw new IllegalArgumentException("unknown opcode " + opcode);
+		}
+		return text.toString();
+	}
+
+	private void ensure(int n) {
+		if (size + n > out.length) out = Arrays.copyOf(out, Math.max(out.length * 2, size + n));
+	}
+
+	private void writeByte(int b) {
+		ensure(1);
+		out[size++] = (byte) b;
+	}
+
+	private void writeVarint(int v) {
+		ensure(5);
+		while ((v & ~0x7f) != 0) {
+			out[size++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out[size++] = (byte) v;
+	}
+
+	private void writeVarlong(long v) {
+		ensure(10);
+		while ((v & ~0x7fL) != 0) {
+			out[size++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		out[size++] = (byte) v;
+	}
+
+	private void writeSigned(int v) {
+		writeVarint((v << 1) ^ (v >> 31));
+	}
+
+	private void writeColor(int rgb) {
+		ensure(4);
+		out[size++] = (byte) (rgb >>> 24);
+		out[size++] = (byte) (rgb >>> 16);
+		out[size++] = (byte) (rgb >>> 8);
+		out[size++] = (byte) rgb;
+	}
+
+	private static int varintSize(int v) {
+		int n = 1;
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * If the next word of the line being encoded is w, moves past it
+	 */
+	private boolean word(String w) {
+		skipSpaces();
+		int n = w.length();
+		if (end - pos < n || (end - pos > n && line.charAt(pos + n) != ' ')) return false;
+		for (int i = 0; i < n; i++) {
+			if (line.charAt(pos + i) != w.charAt(i)) return false;
+		}
+		pos += n;
+		return true;
+	}
+
+	private boolean hasMore() {
+		skipSpaces();
+		return pos < end;
+	}
+
+	/**
+	 * Reads the next word of the line being encoded as an integer
+	 */
+	private int nextInt() {
+		skipSpaces();
+		int start = pos;
+		while (pos < end && line.charAt(pos) != ' ' && line.charAt(pos) != ':') pos++;
+		return Integer.parseInt(line, start, pos, 10);
+	}
+
+	private long nextLong() {
+		skipSpaces();
+		int start = pos;
+		while (pos < end && line.charAt(pos) != ' ') pos++;
+		return Long.parseLong(line, start, pos, 10);
+	}
+
+	private void skipSpaces() {
+		while (pos < end && line.charAt(pos) == ' ') pos++;
+	}
+}
@@ -0,0 +1,711 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One named sketch on a SketchServer, with the clients drawing on it: its own sequencer, handler, log and snapshots,
+ * so boards never wait for each other. The server runs every board's sequencer on one of a fixed pool of workers.
+ *
+ * In a cluster, the same board is on every node. Only its leader puts requests in order; elsewhere the board forwards
+ * its clients' requests to the leader and applies what the leader replicates back, like any other request.
+ *
+ * A client may ask for just the shapes in an area, its viewport ("viewport x1 y1 x2 y2"; "viewport" alone for all
+ * of them again). It is then only told of changes to shapes it can see, is sent a shape whole as it comes into view
+ * ("add ...") and told to forget it as it goes out ("retire id"), so what it is sent follows what is on its screen
+ * rather than everything happening on the board. Its viewport is for this board; it asks again after moving.
+ */
+public class Board {
+	/**
+	 * What the board knows of a client: the number its requests are tagged with when passed on,
+	 * and the number it gave its latest request
+	 */
+	private static class Client {
+		final int id;
+		int lastSeq = 0;
+		Bounds viewport = null;					// if it only wants the shapes in an area: the area
+		Set<Integer> known = null;				// ... and the ids of the shapes it has (null: every one there is)
+		volatile boolean resynced = false;		// whether it has been sent the whole state since (not on the board's thread)
+
+		Client(int id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * The state of the world as of a version, encoded for joiners
+	 */
+	private static class State {
+		final long version;
+		final Message message;
+
+		State(long version, Message message) {
+			this.version = version;
+			this.message = message;
+		}
+	}
+
+	private static final int idBlock = 64;				// shape ids issued to a client at a time
+	private static final int ringSize = 256;			// events a board's sequencer holds (it is allocated up front)
+
+	private final String name;
+	private final SketchServer server;					// settings shared by all boards
+	private final ServerMetrics metrics;				// and counters
+	private final List<ClientConnection> comms = new CopyOnWriteArrayList<ClientConnection>();	// clients on this board
+	private final Sketch sketch = new Sketch();			// the state of the world
+	private final Sequencer sequencer;					// puts every change to it into one order
+	private final MessageHandler handler;				// applies requests (only ever on the sequencer's thread)
+	private Coalescer coalescer = null;					// if batching broadcasts per frame tick: the current batch
+	private volatile boolean framePending = false;		// whether the batch has anything in it
+	private long version = 0;							// number of requests applied to the sketch so far
+	private volatile State state = null;				// latest state encoded for joiners
+	private Thread handling = null;						// the thread handling an event of the board's, while it is
+	private final Map<ClientConnection, Client> clients = new ConcurrentHashMap<ClientConnection, Client>();
+	private final Map<Integer, Client> clientsById = new ConcurrentHashMap<Integer, Client>();
+	private final AtomicInteger viewers = new AtomicInteger();	// clients with a viewport
+	private final boolean leading;						// whether this node puts the board's requests in order
+	private int nextClientId = 1;						// number the next client to join is given (before spreading)
+	private int nextIdBlock;							// block of shape ids to issue next (blocks are dealt round the nodes)
+	private long replicatedVersion = 0;					// version of the last request replicated to this node
+	private OpLog log = null;							// if durable: every request applied, in order
+	private Path logDir = null;							// where it is, along with the snapshots
+	private long lastSnapshot = 0;						// version of the latest snapshot taken
+	private volatile boolean snapshotting = false;		// whether one is being written
+
+	/**
+	 * @param worker the thread the board's requests are applied on (shared with other boards)
+	 */
+	public Board(String name, SketchServer server, Executor worker) {
+		this.name = name;
+		this.server = server;
+		metrics = server.getMetrics();
+		handler = new MessageHandler(sketch);
+		sequencer = new Sequencer(ringSize, this::onEvent, worker);
+		leading = server.leads(name);
+		nextIdBlock = server.getNodeId();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Sketch getSketch() {
+		return sketch;
+	}
+
+	/**
+	 * Sequence number of the last change applied to the sketch and broadcast
+	 */
+	public long getSequence() {
+		return sequencer.getSequence();
+	}
+
+	/**
+	 * Version of the sketch: the number of requests applied to it so far
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public int getClientCount() {
+		return comms.size();
+	}
+
+	/**
+	 * Whether this node is the board's leader, which puts its requests in order (always, if not in a cluster)
+	 */
+	public boolean isLeading() {
+		return leading;
+	}
+
+	/**
+	 * Roughly how many bytes the board takes up: its shapes (and their entries in the map and the grid),
+	 * the state kept encoded for joiners, and its sequencer's ring
+	 */
+	public long getMemoryEstimate() {
+		long[] bytes = {ringSize * 64L};
+		sketch.snapshot().forEach((shape, id) -> {
+			bytes[0] += 160; // the shape object, its bounds, and its share of the trie and grid nodes
+			if (shape instanceof Polyline p) bytes[0] += 8L * p.getPointCount();
+		});
+		State s = state;
+		if (s != null) bytes[0] += 2L * s.message.text().length();
+		return bytes[0];
+	}
+
+	/**
+	 * Keeps every request applied in a durable log in dir, first rebuilding the sketch from what is already there
+	 * (the latest snapshot, and the requests logged after it); call before any client joins
+	 */
+	public void openLog(Path dir, OpLog.FsyncPolicy policy, long intervalMillis) throws IOException {
+		long start = System.nanoTime();
+		lastSnapshot = SnapshotFile.loadLatest(dir, handler);
+		log = new OpLog(dir, OpLog.defaultSegmentSize, policy, intervalMillis, lastSnapshot, handler::decode);
+		logDir = dir;
+		version = log.size();
+		replicatedVersion = version;
+		System.out.printf("board %s: loaded a snapshot of %d requests and replayed %d more from %s in %d ms%n",
+				name, lastSnapshot, version - lastSnapshot, dir, (System.nanoTime() - start) / 1_000_000);
+	}
+
+	/**
+	 * Forces the board's log to the disk and closes it (when the server shuts down)
+	 */
+	public void closeLog() {
+		if (log != null) log.close();
+	}
+
+	/**
+	 * Writes a snapshot of the sketch as it is now, in the background (requests go on being applied meanwhile,
+	 * since a version of the sketch never changes), then drops the part of the log that makes redundant
+	 */
+	private void snapshot() {
+		Sketch.Snapshot current = sketch.snapshot();
+		long at = version;
+		lastSnapshot = at;
+		snapshotting = true;
+		ExecutorService writer = server.getSnapshotWriter();
+		writer.execute(() -> {
+			try {
+				SnapshotFile.write(logDir, at, current);
+				// the one before is kept too, in case this one is ever found damaged, and the log back as far as that
+				long oldest = SnapshotFile.retain(logDir, 2);
+				log.truncateBefore(oldest + 1);
+			}
+			catch (IOException e) {
+				System.err.println("board " + name + ": couldn't write a snapshot: " + e);
+			}
+			finally {
+				snapshotting = false;
+			}
+		});
+	}
+
+	/**
+	 * Brings a client in: it is sent the state of the world as of its place in the order,
+	 * and then every broadcast after that
+	 */
+	public void join(ClientConnection comm) {
+		sequencer.publish(Sequencer.Kind.JOIN, comm, null);
+	}
+
+	/**
+	 * Brings in a client from another board, which is first told to clear what it has from there
+	 */
+	public void moveIn(ClientConnection comm) {
+		sequencer.publish(Sequencer.Kind.JOIN, comm, "clear");
+	}
+
+	/**
+	 * Takes a client out once everything before in the order has been handled (so it gets nothing from here after),
+	 * then runs next on the board's thread (which must not block)
+	 */
+	public void leave(ClientConnection comm, Runnable next) {
+		sequencer.publish(Sequencer.Kind.LEAVE, comm, null, next);
+	}
+
+	/**
+	 * Handles a request from one of the clients: it is applied to the sketch and passed on to everyone on the board,
+	 * in the same order as every other client's requests
+	 */
+	public void receive(ClientConnection from, String request) {
+		sequencer.publish(Sequencer.Kind.OP, from, request);
+	}
+
+	/**
+	 * Handles a request that a client on another node sent (this node being the board's leader)
+	 */
+	public void receiveForwarded(String request) {
+		sequencer.publish(Sequencer.Kind.OP, null, request);
+	}
+
+	/**
+	 * Handles a request the board's leader has applied and passed on (on the transport's thread)
+	 */
+	public void receiveReplicated(long version, String request) {
+		if (version != replicatedVersion + 1) {
+			// a node that has missed requests has no way to catch up yet, but must not pass for being in step
+			System.err.println("board " + name + ": replicated request " + version + " after " + replicatedVersion);
+		}
+		replicatedVersion = version;
+		sequencer.publish(Sequencer.Kind.OP, null, request);
+	}
+
+	/**
+	 * Ends the current frame, if there is anything in it
+	 * @param always even if there isn't (to drop the batch once batching stops)
+	 */
+	public void tick(boolean always) {
+		if (always || framePending) sequencer.publish(Sequencer.Kind.TICK, null, null);
+	}
+
+	/**
+	 * Stops including a client (on the board's thread, which alone touches its viewport)
+	 */
+	private void remove(ClientConnection comm) {
+		comms.remove(comm);
+		Client client = clients.remove(comm);
+		if (client == null) return;
+		clientsById.remove(client.id);
+		if (client.viewport != null) viewers.decrementAndGet();
+	}
+
+	/**
+	 * The current state of the world, as "add" lines (one message, possibly empty), on the board's thread.
+	 * Built once per version of the sketch and shared by everyone who joins before it changes again.
+	 */
+	private Message state() {
+		State s = state;
+		if (s == null || s.version != version) {
+			StringBuilder text = new StringBuilder();
+			Sketch.Snapshot current = sketch.snapshot();
+			int shapeCount = current.getShapeCount();
+			current.forEach((shape, id) -> {
+				// tell the new clients to add the shapes with the same ID as the current client
+				if (text.length() > 0) text.append('\n');
+				text.append("add ").append(id).append(' ').append(shapeCount).append(' ').append(shape);
+			});
+			s = new State(version, new Message(text.toString()));
+			state = s;
+		}
+		return s.message;
+	}
+
+	/**
+	 * Replaces whatever a client has with the current state of the world,
+	 * telling it again who it is and which of its own requests that state includes
+	 */
+	public Message resyncMessage(ClientConnection comm) {
+		if (Thread.currentThread() != handling) {
+			// the one time a client is sent anything from off the board's thread is while it moves here from another
+			// board, which sends it what it is owed meanwhile; its join, which comes after, sends it the state
+			return new Message("clear");
+		}
+		String text = state().text();
+		StringBuilder msg = new StringBuilder("clear");
+		if (!text.isEmpty()) msg.append('\n').append(text);
+		Client client = clients.get(comm);
+		if (client != null) {
+			client.resynced = true; // so it is brought back to just its viewport, if it has one
+			msg.append("\nclient ").append(client.id);
+			if (client.lastSeq > 0) msg.append("\n@").append(client.id).append(':').append(client.lastSeq);
+		}
+		return new Message(msg.toString());
+	}
+
+	/**
+	 * The next block of shape ids, as the line giving it to a client; no one else is given them
+	 */
+	private String issueIds() {
+		// past any id already used, including by clients that pick their own;
+		// node k of a cluster issues blocks k, k + nodes, k + 2 nodes, ..., so no two nodes issue the same id
+		int nodes = server.getNodeCount();
+		while ((long) nextIdBlock * idBlock < sketch.getShapeCount()) nextIdBlock += nodes;
+		int first = nextIdBlock * idBlock + 1;
+		nextIdBlock += nodes;
+		return "ids " + first + " " + idBlock;
+	}
+
+	/**
+	 * "@client:seq ", with the request's "%origin" stamp after it if it is being traced
+	 */
+	private static String tag(int clientId, int seq, long origin) {
+		String tag = "@" + clientId + ":" + seq + " ";
+		return origin != 0 ? tag + "%" + origin + " " : tag;
+	}
+
+	/**
+	 * When a request was made, from the "%origin" stamp it starts with if it is being traced (else 0)
+	 */
+	private static long origin(String line) {
+		if (!line.startsWith("%")) return 0;
+		int space = line.indexOf(' ');
+		return Long.parseLong(line, 1, space < 0 ? line.length() : space, 10);
+	}
+
+	/**
+	 * The request after its stamp
+	 */
+	private static String unstamped(String line) {
+		int space = line.indexOf(' ');
+		return space < 0 ? "" : line.substring(space + 1);
+	}
+
+	/**
+	 * Handles the next event in the board's order (on its sequencer's thread), noting which thread that is
+	 */
+	private void onEvent(Sequencer.Event event) {
+		handling = Thread.currentThread();
+		try {
+			handle(event);
+		}
+		finally {
+			handling = null;
+		}
+	}
+
+	/**
+	 * Handles the next event in the board's order
+	 */
+	private void handle(Sequencer.Event event) {
+		switch (event.kind) {
+			case OP -> {
+				String line = event.line;
+				int clientId = 0, seq = 0;
+				long origin = 0; // if the request is being traced (see Tracer): when it was made
+				if (event.source != null) {
+					// from a client of this node
+					Client client = clients.get(event.source);
+					if (line.startsWith("@")) {
+						// "@seq request": the client's own number for it, passed on as "@client:seq" once applied
+						int space = line.indexOf(' ');
+						if (space < 0) space = line.length();
+						seq = Integer.parseInt(line, 1, space, 10);
+						line = line.substring(Math.min(space + 1, line.length()));
+						origin = origin(line);
+						if (origin != 0) line = unstamped(line);
+					}
+					if (line.equals("ids")) {
+						// the client is running out of ids for its shapes
+						if (client != null) event.source.send(new Message(issueIds()));
+						return;
+					}
+					if (line.equals("viewport") || line.startsWith("viewport ")) {
+						// the client only wants to hear about the shapes in an area (or all of them again)
+						if (client != null) setViewport(event.source, client, line);
+						return;
+					}
+					if (client != null) clientId = client.id;
+					if (!leading) {
+						// the leader puts it in order, and it comes back with everyone else's
+						server.forward(name, clientId > 0 && seq > 0 ? tag(clientId, seq, origin) + line : line);
+						return;
+					}
+				}
+				else if (line.startsWith("@")) {
+					// from another node, already tagged "@client:seq"
+					int colon = line.indexOf(':'), space = line.indexOf(' ');
+					clientId = Integer.parseInt(line, 1, colon, 10);
+					seq = Integer.parseInt(line, colon + 1, space, 10);
+					line = line.substring(space + 1);
+					origin = origin(line);
+					if (origin != 0) line = unstamped(line);
+				}
+				boolean tagged = clientId > 0 && seq > 0;
+				if (tagged) {
+					// the state now includes it, for a resync (if the client is on this node)
+					Client client = clientsById.get(clientId);
+					if (client != null) client.lastSeq = seq;
+				}
+				long start = System.nanoTime();
+				handler.decode(line);
+				long applied = System.nanoTime();
+				metrics.applied(line, applied - start);
+				Tracer tracer = tagged && origin != 0 ? server.getTracer() : null;
+				if (tracer != null && leading) {
+					// the stages up to here happen where the request is put in order
+					long received = Tracer.micros(event.publishedAt);
+					tracer.record(Tracer.Stage.SEND, origin, received);
+					tracer.record(Tracer.Stage.QUEUE, received, Tracer.micros(start));
+					tracer.record(Tracer.Stage.APPLY, Tracer.micros(start), Tracer.micros(applied));
+				}
+				version++;
+				if (log != null) {
+					log.append(line); // a copy into the mapped log; the disk is the flusher's business
+					long snapshotEvery = server.getSnapshotEvery();
+					if (snapshotEvery > 0 && version - lastSnapshot >= snapshotEvery && !snapshotting) snapshot();
+				}
+				String tagLine = null;
+				if (leading && server.isReplicating()) {
+					tagLine = tagged ? tag(clientId, seq, origin) + line : line;
+					server.replicate(name, version, tagLine); // the other nodes apply it next, as this one did
+				}
+				if (server.isCoalescing()) {
+					if (coalescer == null) coalescer = new Coalescer();
+					// tell other clients at the end of the frame
+					coalescer.add(line, tagged ? clientId : 0, seq, tracer != null ? origin : 0, Tracer.micros(applied));
+					framePending = true;
+				}
+				else if (tracer != null) {
+					long now = Tracer.now();
+					tracer.record(Tracer.Stage.HOLD, Tracer.micros(applied), now);
+					broadcast("@" + clientId + ":" + seq + " %" + origin + " %" + now + " " + line);
+				}
+				else {
+					if (tagLine == null || origin != 0) tagLine = tagged ? "@" + clientId + ":" + seq + " " + line : line;
+					broadcast(tagLine); // tell other clients
+				}
+			}
+			case TICK -> {
+				flushFrame();
+				if (!server.isCoalescing()) coalescer = null;
+			}
+			case JOIN -> {
+				flushFrame(); // everyone else must be as up to date as the state the new client gets
+				if (event.line != null) event.source.send(new Message(event.line)); // "clear", if moving from another board
+				Message s = state();
+				if (!s.text().isEmpty()) event.source.send(s);
+				// spread like the shape ids, so a client's number is its own across the cluster
+				Client client = new Client(nextClientId++ * server.getNodeCount() + server.getNodeId());
+				clients.put(event.source, client);
+				clientsById.put(client.id, client);
+				event.source.send(new Message("client " + client.id + "\n" + issueIds()));
+				comms.add(event.source);
+				// it may have hung up before its turn came (its leave then came in before it had joined)
+				if (!event.source.isOpen()) remove(event.source);
+			}
+			case LEAVE -> {
+				flushFrame(); // it is owed whatever has been batched up so far
+				remove(event.source);
+				if (event.next != null) event.next.run();
+			}
+		}
+	}
+
+	/**
+	 * Broadcasts whatever the current frame has batched up
+	 */
+	private void flushFrame() {
+		framePending = false;
+		if (coalescer == null || coalescer.isEmpty()) return;
+		String frame = coalescer.flush(server.getTracer());
+		if (frame != null) broadcast(frame);
+	}
+
+	/**
+	 * Sends the message to every client on the board (including the originator),
+	 * or to a client with a viewport, what of it concerns the shapes it can see
+	 */
+	public void broadcast(String msg) {
+		long start = System.nanoTime();
+		Message message = new Message(msg); // encoded once for everyone who gets all of it
+		Map<String, Message> parts = null; // likewise what the others get, shared when it is the same
+		Lines lines = null; // the message taken apart, once, for those with a viewport
+		boolean routing = viewers.get() > 0;
+		for (ClientConnection comm : comms) {
+			Client client = routing ? clients.get(comm) : null;
+			if (client == null || client.viewport == null) {
+				comm.send(message);
+				continue;
+			}
+			if (lines == null) lines = new Lines(msg, sketch.snapshot());
+			String part = visible(client, lines);
+			if (part == msg) {
+				comm.send(message);
+			}
+			else if (part != null) {
+				if (parts == null) parts = new HashMap<String, Message>();
+				comm.send(parts.computeIfAbsent(part, Message::new));
+			}
+		}
+		metrics.broadcast(System.nanoTime() - start);
+	}
+
+	/**
+	 * Sets the area a client wants the shapes in ("viewport x1 y1 x2 y2", or "viewport" for all of them),
+	 * sending it the shapes that have come into view and retiring those that have gone out
+	 */
+	private void setViewport(ClientConnection comm, Client client, String line) {
+		String[] words = line.trim().split(" +");
+		Bounds viewport = words.length == 1 ? null : new Bounds(Integer.parseInt(words[1]), Integer.parseInt(words[2]),
+				Integer.parseInt(words[3]), Integer.parseInt(words[4]));
+		flushFrame(); // what has been batched up goes by what the client could see when it was applied
+		if (client.viewport == null && viewport == null) return;
+		if (client.viewport == null) viewers.incrementAndGet();
+		else if (viewport == null) viewers.decrementAndGet();
+		client.viewport = viewport;
+		String changes = reconcile(client);
+		if (viewport == null) client.known = null;
+		if (!changes.isEmpty()) comm.send(new Message(changes));
+	}
+
+	/**
+	 * Brings what a client has into line with its viewport (or with every shape, if it has none)
+	 * @return the lines that do that: adds for the shapes it is missing, and retires for those it shouldn't have
+	 */
+	private String reconcile(Client client) {
+		Sketch.Snapshot now = sketch.snapshot();
+		if (client.known == null || client.resynced) {
+			// it has been sent everything there is
+			client.resynced = false;
+			Set<Integer> known = new HashSet<Integer>();
+			now.forEach((shape, id) -> known.add(id));
+			client.known = known;
+		}
+		StringBuilder out = new StringBuilder();
+		Bounds view = client.viewport;
+		for (Iterator<Integer> i = client.known.iterator(); i.hasNext();) {
+			int id = i.next();
+			Shape shape = now.getShape(id);
+			if (shape == null || (view != null && !shape.getBounds().intersects(view))) {
+				i.remove();
+				if (out.length() > 0) out.append('\n');
+				out.append("retire ").append(id);
+			}
+		}
+		if (view == null) {
+			now.forEach((shape, id) -> {
+				if (client.known.add(id)) appendShape(out.length() > 0 ? out.append('\n') : out, now, id, shape);
+			});
+		}
+		else {
+			for (int id : now.idsIn(view)) {
+				if (client.known.add(id)) appendShape(out.length() > 0 ? out.append('\n') : out, now, id, now.getShape(id));
+			}
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Adds the request sending the shape whole to the output
+	 */
+	private static void appendShape(StringBuilder out, Sketch.Snapshot now, int id, Shape shape) {
+		out.append("add ").append(id).append(' ').append(now.getShapeCount()).append(' ').append(shape);
+	}
+
+	/**
+	 * A broadcast taken apart into its lines, with the shape each is about as the sketch has it now
+	 */
+	private static class Lines {
+		static final int NONE = -1, CLEAR = -2;	// ids of lines not about a shape
+
+		final String msg;
+		final Sketch.Snapshot now;	// the sketch it was taken apart against
+		final int count;
+		final int[] start, at, end;	// where each line starts, its request starts (after tags and stamps), and it ends
+		final int[] owner;			// the client whose request it is ("@client:seq" in front), or 0
+		final int[] ids;			// the shape it is about, NONE or CLEAR
+		final Bounds[] bounds;		// ... and where that is now (null if it is gone)
+		final boolean[] deletes;
+
+		Lines(String msg, Sketch.Snapshot now) {
+			this.msg = msg;
+			this.now = now;
+			int n = 1;
+			for (int i = msg.indexOf('\n'); i >= 0; i = msg.indexOf('\n', i + 1)) n++;
+			count = n;
+			start = new int[n];
+			at = new int[n];
+			end = new int[n];
+			owner = new int[n];
+			ids = new int[n];
+			bounds = new Bounds[n];
+			deletes = new boolean[n];
+			int s = 0;
+			for (int i = 0; i < n; i++) {
+				int e = msg.indexOf('\n', s);
+				if (e < 0) e = msg.length();
+				start[i] = s;
+				end[i] = e;
+				// tags and trace stamps in front
+				int a = s;
+				while (a < e && (msg.charAt(a) == '@' || msg.charAt(a) == '%')) {
+					int colon = msg.indexOf(':', a);
+					if (a == s && msg.charAt(a) == '@' && colon > a + 1 && colon < e) owner[i] = Integer.parseInt(msg, a + 1, colon, 10);
+					int space = msg.indexOf(' ', a);
+					a = space < 0 || space > e ? e : space + 1;
+				}
+				at[i] = a;
+				// all the requests but clear are about one shape, whose id comes next
+				int space = msg.indexOf(' ', a);
+				if (msg.startsWith("clear", a) && a + "clear".length() == e) {
+					ids[i] = CLEAR;
+				}
+				else if (space > 0 && space + 1 < e && Character.isDigit(msg.charAt(space + 1))) {
+					int idEnd = msg.indexOf(' ', space + 1);
+					int id = Integer.parseInt(msg, space + 1, idEnd < 0 || idEnd > e ? e : idEnd, 10);
+					Shape shape = now.getShape(id);
+					ids[i] = id;
+					bounds[i] = shape == null ? null : shape.getBounds();
+					deletes[i] = msg.startsWith("delete ", a);
+				}
+				else {
+					ids[i] = NONE;
+				}
+				s = e + 1;
+			}
+		}
+	}
+
+	/**
+	 * What a client with a viewport gets of a broadcast (just applied, or the end of a frame): the changes to the shapes
+	 * it can see, a shape that has come into view whole, retires for those gone out of view, and its own tags
+	 * whatever they are in front of (so it still hears that its requests are in)
+	 * @return the message itself if that is all of it, or null if it gets none of it
+	 */
+	private String visible(Client client, Lines lines) {
+		String msg = lines.msg;
+		StringBuilder out = null;	// what it gets, once that is not the message as it is
+		if (client.resynced) {
+			String changes = reconcile(client);
+			if (!changes.isEmpty()) out = new StringBuilder(changes);
+		}
+		Set<Integer> sentWhole = null;	// shapes sent whole by this message (so with every change in it already)
+		for (int i = 0; i < lines.count; i++) {
+			int id = lines.ids[i];
+			boolean keep = true;	// whether it gets the line as it is
+			boolean whole = false;	// ... or the shape whole instead
+			boolean retire = false;	// ... or told to forget it
+			if (id == Lines.CLEAR) {
+				client.known.clear();
+			}
+			else if (id != Lines.NONE) {
+				Bounds bounds = lines.bounds[i];
+				boolean knows = client.known.contains(id);
+				if (sentWhole != null && sentWhole.contains(id)) {
+					keep = false;
+				}
+				else if (bounds == null) {
+					// gone by now: all it needs to hear is the delete, if it had the shape
+					keep = knows && lines.deletes[i];
+					client.known.remove(id);
+				}
+				else if (!bounds.intersects(client.viewport)) {
+					keep = false;
+					retire = knows;
+					client.known.remove(id);
+				}
+				else if (!knows) {
+					keep = false;
+					whole = true;
+					client.known.add(id);
+					if (sentWhole == null) sentWhole = new HashSet<Integer>();
+					sentWhole.add(id);
+				}
+			}
+			if (keep) {
+				if (out != null) (out.length() > 0 ? out.append('\n') : out).append(msg, lines.start[i], lines.end[i]);
+				continue;
+			}
+			if (out == null) {
+				// all it got before this line was as it is
+				out = new StringBuilder();
+				if (i > 0) out.append(msg, 0, lines.end[i - 1]);
+			}
+			boolean own = lines.owner[i] == client.id;
+			if (!own && !whole && !retire) continue;
+			if (out.length() > 0) out.append('\n');
+			if (own) out.append(msg, lines.start[i], lines.at[i]);
+			if (whole) {
+				appendShape(out, lines.now, id, lines.now.getShape(id));
+			}
+			else if (retire) {
+				out.append("retire ").append(id);
+			}
+			else if (lines.at[i] > lines.start[i] && msg.charAt(lines.at[i] - 1) == ' ') {
+				out.setLength(out.length() - 1); // just the tags
+			}
+		}
+		if (out == null) return msg;
+		return out.length() > 0 ? out.toString() : null;
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * An axis-aligned box, inclusive of its edges: (x1,y1) upper left to (x2,y2) lower right,
+ * with x1<=x2 and y1<=y2. Immutable, so it can be shared freely.
+ */
+public class Bounds {
+	public final int x1, y1, x2, y2;
+
+	public Bounds(int x1, int y1, int x2, int y2) {
+		this.x1 = Math.min(x1, x2);
+		this.y1 = Math.min(y1, y2);
+		this.x2 = Math.max(x1, x2);
+		this.y2 = Math.max(y1, y2);
+	}
+
+	/**
+	 * Whether the point is inside the box
+	 */
+	public boolean contains(int x, int y) {
+		return x1 <= x && x <= x2 && y1 <= y && y <= y2;
+	}
+
+	/**
+	 * Whether the boxes overlap at all
+	 */
+	public boolean intersects(Bounds other) {
+		return x1 <= other.x2 && other.x1 <= x2 && y1 <= other.y2 && other.y1 <= y2;
+	}
+
+	/**
+	 * Smallest box covering both
+	 */
+	public Bounds union(Bounds other) {
+		if (other == null) return this;
+		return new Bounds(Math.min(x1, other.x1), Math.min(y1, other.y1), Math.max(x2, other.x2), Math.max(y2, other.y2));
+	}
+
+	/**
+	 * The box grown by margin on every side
+	 */
+	public Bounds grow(int margin) {
+		return new Bounds(x1 - margin, y1 - margin, x2 + margin, y2 + margin);
+	}
+
+	/**
+	 * The box moved by dx, dy
+	 */
+	public Bounds translate(int dx, int dy) {
+		return new Bounds(x1 + dx, y1 + dy, x2 + dx, y2 + dy);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Bounds)) return false;
+		Bounds b = (Bounds) o;
+		return x1 == b.x1 && y1 == b.y1 && x2 == b.x2 && y2 == b.y2;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((x1 * 31 + y1) * 31 + x2) * 31 + y2;
+	}
+
+	@Override
+	public String toString() {
+		return x1+" "+y1+" "+x2+" "+y2;
+	}
+}
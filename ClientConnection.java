@@ -0,0 +1,20 @@
+/**
+ * One editor connected to the SketchServer, however the bytes actually get to it
+ * (a thread per socket in SketchServerCommunicator, or a selector loop in SelectorCommunicator)
+ */
+public interface ClientConnection {
+	/**
+	 * Queues a message (one or more protocol lines) to be sent to the client
+	 */
+	public void send(Message msg);
+
+	/**
+	 * Whether the client is still connected (false once it has hung up or been dropped)
+	 */
+	public boolean isOpen();
+
+	/**
+	 * How many messages are waiting to be written to the client
+	 */
+	public int getQueueDepth();
+}
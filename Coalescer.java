@@ -0,0 +1,203 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the requests applied during one frame tick so they can be broadcast as a single batch,
+ * merging the ones a client would never see separately:
+ * consecutive moves of a shape become one move by the summed delta,
+ * a recolor replaces any earlier recolor of the same shape still waiting,
+ * and the points streamed into a stroke are sent as one append.
+ * The clients' numbers for the requests ("@client:seq", just the latest per client) go last, on a line of their own,
+ * so a client only hears that its requests are in once every change the batch holds has been applied.
+ *
+ * Only used on the sequencer's thread, so needs no locking.
+ */
+public class Coalescer {
+	/**
+	 * A request waiting for the end of the tick
+	 */
+	private static class Pending {
+		String line;			// request as received (null once superseded)
+		int id = -1;			// shape it affects (-1 for requests that are not merged)
+		boolean move;			// whether it is a move (then dx, dy are its running total)
+		int dx, dy;
+		StringBuilder append;	// if it is an append: the request, with any later points of the stroke added on
+
+		Pending(String line) {
+			this.line = line;
+		}
+	}
+
+	private ArrayList<Pending> pending = new ArrayList<Pending>();			// in the order applied
+	private HashMap<Integer, Pending> lastOp = new HashMap<Integer, Pending>();		// id -> latest request for it
+	private HashMap<Integer, Pending> lastRecolor = new HashMap<Integer, Pending>();	// id -> recolor still waiting
+	private LinkedHashMap<Integer, Integer> lastSeq = new LinkedHashMap<Integer, Integer>();	// client -> its latest request's number
+	private HashMap<Integer, long[]> lastTrace = new HashMap<Integer, long[]>();	// client -> when that was made and applied, if traced
+	private String parsing;			// request being added
+	private int pos;				// parse position in it
+
+	/**
+	 * Whether anything is waiting to be broadcast
+	 */
+	public boolean isEmpty() {
+		return pending.isEmpty() && lastSeq.isEmpty();
+	}
+
+	/**
+	 * Adds a request that has just been applied to the sketch
+	 */
+	public void add(String line) {
+		add(line, 0, 0);
+	}
+
+	/**
+	 * Adds a request that has just been applied to the sketch, which client numbered seq (client 0 if not numbered)
+	 */
+	public void add(String line, int client, int seq) {
+		add(line, client, seq, 0, 0);
+	}
+
+	/**
+	 * Adds a request that has just been applied to the sketch, which client numbered seq, and which is being traced
+	 * (see Tracer): made at origin and applied at applied, in microseconds since the epoch (origin 0 if not traced)
+	 */
+	public void add(String line, int client, int seq, long origin, long applied) {
+		if (client != 0) {
+			lastSeq.put(client, seq);
+			if (origin != 0) lastTrace.put(client, new long[] {origin, applied});
+			else lastTrace.remove(client);
+		}
+		// parsed where it is, as MessageHandler does, rather than split into words
+		parsing = line;
+		pos = 0;
+		if (word("move")) {
+			int id = nextInt();
+			int dx = nextInt(), dy = nextInt();
+			Pending last = lastOp.get(id);
+			if (last != null && last.move) {
+				// same shape still being dragged: fold into the move already waiting
+				last.dx += dx;
+				last.dy += dy;
+				return;
+			}
+			Pending p = append(line, id);
+			p.move = true;
+			p.dx = dx;
+			p.dy = dy;
+		}
+		else if (word("recolor")) {
+			int id = nextInt();
+			Pending earlier = lastRecolor.get(id);
+			if (earlier != null) earlier.line = null; // only the final color matters
+			lastRecolor.put(id, append(line, id));
+		}
+		else if (word("append")) {
+			int id = nextInt();
+			Pending last = lastOp.get(id);
+			if (last != null && last.append != null) {
+				// more of the same stroke: just its points, after the ones already waiting
+				if (pos < line.length()) last.append.append(line, pos, line.length());
+				return;
+			}
+			append(line, id).append = new StringBuilder(line);
+		}
+		else if (word("end")) {
+			append(line, nextInt());
+		}
+		else if (word("add") || word("delete") || word("stroke")) {
+			// starts or ends a shape's life: nothing before it may be merged with anything after
+			int id = nextInt();
+			append(line, id);
+			lastRecolor.remove(id);
+		}
+		else {
+			// e.g. clear: keep everything in order around it
+			pending.add(new Pending(line));
+			lastOp.clear();
+			lastRecolor.clear();
+		}
+	}
+
+	/**
+	 * Whether the request's next word is w, moving past it if so
+	 */
+	private boolean word(String w) {
+		int n = w.length();
+		if (!parsing.startsWith(w, pos) || (pos + n < parsing.length() && parsing.charAt(pos + n) != ' ')) return false;
+		pos += n;
+		return true;
+	}
+
+	/**
+	 * Reads the request's next word as an integer
+	 */
+	private int nextInt() {
+		while (pos < parsing.length() && parsing.charAt(pos) == ' ') pos++;
+		int start = pos;
+		while (pos < parsing.length() && parsing.charAt(pos) != ' ') pos++;
+		return Integer.parseInt(parsing, start, pos, 10);
+	}
+
+	/**
+	 * Queues a request that affects shape id
+	 */
+	private Pending append(String line, int id) {
+		Pending p = new Pending(line);
+		p.id = id;
+		pending.add(p);
+		lastOp.put(id, p);
+		return p;
+	}
+
+	/**
+	 * Everything waiting, merged, as one message (null if nothing remains), and starts a new tick
+	 */
+	public String flush() {
+		return flush(null);
+	}
+
+	/**
+	 * Everything waiting, merged, as one message (null if nothing remains), and starts a new tick;
+	 * with a tracer, the requests being traced have their stamps passed on, and the time they were held counted
+	 */
+	public String flush(Tracer tracer) {
+		long now = tracer != null && !lastTrace.isEmpty() ? Tracer.now() : 0;
+		StringBuilder frame = new StringBuilder();
+		for (Pending p : pending) {
+			if (p.move) {
+				if (p.dx == 0 && p.dy == 0) continue; // dragged back to where it started
+				if (frame.length() > 0) frame.append('\n');
+				frame.append("move ").append(p.id).append(' ').append(p.dx).append(' ').append(p.dy);
+			}
+			else if (p.append != null) {
+				if (frame.length() > 0) frame.append('\n');
+				frame.append(p.append);
+			}
+			else if (p.line != null) {
+				if (frame.length() > 0) frame.append('\n');
+				frame.append(p.line);
+			}
+		}
+		if (!lastSeq.isEmpty()) {
+			if (frame.length() > 0) frame.append('\n');
+			String sep = "";
+			for (Map.Entry<Integer, Integer> last : lastSeq.entrySet()) {
+				frame.append(sep).append('@').append(last.getKey()).append(':').append(last.getValue());
+				long[] trace = tracer != null ? lastTrace.get(last.getKey()) : null;
+				if (trace != null) {
+					frame.append(" %").append(trace[0]).append(" %").append(now);
+					tracer.record(Tracer.Stage.HOLD, trace[1], now);
+				}
+				sep = " ";
+			}
+		}
+		pending.clear();
+		lastOp.clear();
+		lastRecolor.clear();
+		lastSeq.clear();
+		lastTrace.clear();
+		return frame.length() > 0 ? frame.toString() : null;
+	}
+}
@@ -1,9 +1,9 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 
 /**
  * EchoServer is a simple server which accepts a connection and 
@@ -26,8 +26,9 @@ public class EchoServer {
 
     private class EchoServerCommunicator extends Thread {
         private Socket sock;
-        private BufferedReader in;  // from client
-        private PrintWriter out;    // to client
+        private LineReader in;      // from client
+        private OutputStream out;   // to client
+        private BinaryCodec codec;  // once the client has switched to binary frames: for printing them
 
         public EchoServerCommunicator(Socket sock) {
             this.sock = sock;
@@ -38,19 +39,23 @@ public class EchoServer {
                 System.out.println("editor connected for testing...");
 
                 // Communication channel
-                in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                out = new PrintWriter(sock.getOutputStream(), true);
+                in = new LineReader(sock.getInputStream());
+                out = new BufferedOutputStream(sock.getOutputStream());
 
-                // Echo loop
-                String line;
-                while ((line = in.readLine()) != null) {
+                // Echo loop: lines, until the client asks for frames (echoing the request is the answer)
+                CharSequence line;
+                while (codec == null && (line = in.readLine()) != null) {
                     System.out.println("received: " + line);
-                    send(line);
+                    send(line.toString());
+                    if (BinaryCodec.isHello(line)) codec = new BinaryCodec();
+                }
+                while (codec != null && in.readFrame()) {
+                    System.out.println("received: " + codec.toText(in.frameBuffer(), in.frameStart(), in.frameLength()));
+                    sendFrame(in.frameBuffer(), in.frameStart(), in.frameLength());
                 }
 
                 // Clean up
                 out.close();
-                in.close();
                 sock.close();
             }
             catch (IOException e) {
@@ -58,9 +63,25 @@ public class EchoServer {
             }
         }
 
-        public void send(String msg) {
+        public void send(String msg) throws IOException {
             System.out.println("send: " + msg);
-            out.println(msg);
+            out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        /**
+         * Sends a binary frame back as it came, length prefix and all
+         */
+        public void sendFrame(byte[] buf, int offset, int length) throws IOException {
+            for (int v = length; ; v >>>= 7) {
+                if ((v & ~0x7f) == 0) {
+                    out.write(v);
+                    break;
+                }
+                out.write((v & 0x7f) | 0x80);
+            }
+            out.write(buf, offset, length);
+            out.flush();
         }
     }
 
@@ -1,5 +1,7 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
 import javax.swing.*;
 
 /**
@@ -16,8 +18,13 @@ public class Editor extends JFrame {
 	private static String serverIP = "localhost";			// IP address of sketch server
 	// "localhost" for your own machine;
 	// or ask a friend for their IP address
+	private static int serverPort = 4242;					// its port (a cluster's nodes are on 4242 and up)
+	private static String board = SketchServer.defaultBoard;	// which of the server's boards to draw on
 
 	private static final int width = 800, height = 800;		// canvas size
+	private static boolean streamStrokes = true;			// send freehand strokes while they are drawn (else only when done)
+	private static final int strokeMillis = 30;				// how often the points of a stroke are sent
+	private static final int strokeBatch = 64;				// most points sent in one append
 
 	// Current settings on GUI
 	public enum Mode {
@@ -30,25 +37,42 @@ public class Editor extends JFrame {
 	// Drawing state
 	// these are remnants of my implementation; take them as possible suggestions or ignore them
 	private Shape curr = null;					// current shape (if any) being drawn
-	private Sketch sketch;						// holds and handles all the completed objects
+	private Speculation speculation;			// the server's sketch, and this editor's requests it has yet to confirm
+	private Sketch sketch;						// holds and handles all the completed objects (as this editor sees them)
 	private int movingId = -1;					// current shape id (if any; else -1) being moved
 	private Point drawFrom = null;				// where the drawing started
 	private Point moveFrom = null;				// where object is as it's being dragged
+	private int strokeId = -1;					// id of the freehand stroke (if any; else -1) being streamed
+	private StringBuilder strokePoints = new StringBuilder();	// points of that stroke not sent yet
+	private int strokeCount = 0;				// how many points that is
+	private Timer strokeTimer;					// sends them every strokeMillis
 
 	// Communication
 	private EditorCommunicator comm;			// communication with the sketch server
+	private final JComponent canvas;			// where the sketch is drawn
+
+	// Drawing layers: the sketch is kept rendered offscreen, apart from the shape being moved (drawn live on top)
+	private BufferedImage layer = null;			// the sketch as last rendered, without layerExcludes
+	private int layerExcludes = -1;				// shape left out of layer (if any; else -1)
+	private Bounds stale = null;				// area of layer out of date (guarded by staleLock)
+	private final Object staleLock = new Object();
 
 	public Editor() {
-		super("Graphical Editor");
+		super("Graphical Editor: " + board);
+
+		// requests show at once, in a view of the sketch the server's messages are reconciled with
+		// (which keeps track of the area each change touches, so that just that is repainted)
+		speculation = new Speculation();
+		sketch = speculation.view();
+		strokeTimer = new Timer(strokeMillis, e -> sendStrokePoints());
 
-		sketch = new Sketch();
+		// Helpers to create the canvas and GUI (buttons, etc.); the canvas first, as the server's state repaints it
+		canvas = setupCanvas();
 
 		// Connect to server
-		comm = new EditorCommunicator(serverIP, this);
+		comm = new EditorCommunicator(serverIP, serverPort, board, this);
 		comm.start();
 
-		// Helpers to create the canvas and GUI (buttons, etc.)
-		JComponent canvas = setupCanvas();
 		JComponent gui = setupGUI();
 
 		// Put the buttons and canvas together into the window
@@ -72,6 +96,7 @@ public class Editor extends JFrame {
 			public void paintComponent(Graphics g) {
 				super.paintComponent(g);
 				drawSketch(g);
+				comm.painted();
 			}
 		};
 
@@ -93,6 +118,13 @@ public class Editor extends JFrame {
 			}
 		});
 
+		// the server need only send changes to what fits on the canvas (a shape is sent whole when it comes into view)
+		canvas.addComponentListener(new ComponentAdapter() {
+			public void componentResized(ComponentEvent event) {
+				comm.send("viewport 0 0 " + (canvas.getWidth() - 1) + " " + (canvas.getHeight() - 1));
+			}
+		});
+
 		return canvas;
 	}
 
@@ -160,21 +192,83 @@ public class Editor extends JFrame {
 		return sketch;
 	}
 
+	public Speculation getSpeculation() {
+		return speculation;
+	}
+
+	/**
+	 * Repaints just the part of the canvas within the bounds (nothing if null);
+	 * safe from any thread, and Swing merges the areas asked for before the next paint
+	 */
+	public void repaint(Bounds area) {
+		if (area == null) return;
+		// a pixel to spare on each side, for the outline
+		canvas.repaint(area.x1 - 1, area.y1 - 1, area.x2 - area.x1 + 3, area.y2 - area.y1 + 3);
+	}
+
+	/**
+	 * Marks an area the sketch has changed in (nothing if null), so that it is rendered again and repainted;
+	 * safe from any thread
+	 */
+	public void sketchChanged(Bounds area) {
+		if (area == null) return;
+		synchronized (staleLock) {
+			stale = area.union(stale);
+		}
+		repaint(area);
+	}
+
 	/**
 	 * Draws all the shapes in the sketch,
 	 * along with the object currently being drawn in this editor (not yet part of the sketch)
 	 */
 	public void drawSketch(Graphics g) {
 		// TODO: YOUR CODE HERE
-		// draw all the shapes if sketch map is not empty
-		if (!sketch.isEmpty()) {
-			sketch.draw(g);
+		// bring the offscreen layer up to date where the sketch has changed, then show it
+		updateLayer();
+		g.drawImage(layer, 0, 0, null);
+
+		// the live shapes on top
+		Shape moving = movingId != -1 ? sketch.getShape(movingId) : null;
+		if (moving != null && moving != curr) {
+			moving.draw(g);
 		}
 		if (curr != null){
 			curr.draw(g);
 		}
 	}
 
+	/**
+	 * Renders the stale parts of the layer again (all of it, the first time or if the canvas has been resized)
+	 */
+	private void updateLayer() {
+		Bounds refresh;
+		synchronized (staleLock) {
+			refresh = stale;
+			stale = null;
+		}
+		if (layer == null || layer.getWidth() != canvas.getWidth() || layer.getHeight() != canvas.getHeight()) {
+			layer = new BufferedImage(Math.max(1, canvas.getWidth()), Math.max(1, canvas.getHeight()), BufferedImage.TYPE_INT_ARGB);
+			refresh = new Bounds(0, 0, layer.getWidth(), layer.getHeight());
+		}
+		if (layerExcludes != movingId) {
+			// a shape starts or stops being moved: it leaves or rejoins the layer
+			Shape was = sketch.getShape(layerExcludes), now = sketch.getShape(movingId);
+			if (was != null) refresh = was.getBounds().union(refresh);
+			if (now != null) refresh = now.getBounds().union(refresh);
+			layerExcludes = movingId;
+		}
+		if (refresh == null) return;
+
+		Graphics2D lg = layer.createGraphics();
+		lg.setClip(refresh.x1 - 1, refresh.y1 - 1, refresh.x2 - refresh.x1 + 3, refresh.y2 - refresh.y1 + 3);
+		lg.setComposite(AlphaComposite.Clear);
+		lg.fillRect(refresh.x1 - 1, refresh.y1 - 1, refresh.x2 - refresh.x1 + 3, refresh.y2 - refresh.y1 + 3);
+		lg.setComposite(AlphaComposite.SrcOver);
+		sketch.draw(lg, layerExcludes);
+		lg.dispose();
+	}
+
 	// Helpers for event handlers
 	/**
 	 * Helper method for press at point
@@ -185,39 +279,48 @@ public class Editor extends JFrame {
 	 */
 	public void handlePress(Point p) {
 		// TODO: YOUR CODE HERE
+		int shapeID;
 		drawFrom = p;
 		if (mode == Mode.DRAW) {
 			switch (shapeType) {
 				case "ellipse" -> curr = new Ellipse(drawFrom.x, drawFrom.y, color);
 				case "rectangle" -> curr = new Rectangle(drawFrom.x, drawFrom.y, color);
-				case "polyline" -> curr = new Polyline(drawFrom.x, drawFrom.y, color);
+				case "polyline" -> {
+					curr = new Polyline(drawFrom.x, drawFrom.y, color);
+					if (streamStrokes) {
+						// the others see the stroke grow as it is drawn
+						strokeId = nextShapeId();
+						request("stroke " + strokeId + " " + shapeCount(strokeId) + " " + drawFrom.x + " " + drawFrom.y + " " + color.getRGB());
+						strokeTimer.start();
+					}
+				}
 				case "segment" -> curr = new Segment(drawFrom.x, drawFrom.y, color);
 			}
 		}
 
 		// handle the request if there is a shape where the mouse is pressed
-		else if (sketch.topMostShapeAt(p.x, p.y) != -1) {
-			int shapeID = sketch.topMostShapeAt(p.x, p.y);
-			curr = sketch.getShape(shapeID); // update current shape
+		else if ((shapeID = sketch.topMostShapeAt(p.x, p.y)) != -1) {
+			// the shape as it is now (when it changes, the sketch has a new one in its place)
+			Shape pressed = sketch.getShape(shapeID);
 
 			// for recolor mode, send recolor the shape request to the server
-			if (curr != null && mode == Mode.RECOLOR) {
-				comm.send("recolor " + shapeID + " " + color.getRGB());
+			if (pressed != null && mode == Mode.RECOLOR) {
+				request("recolor " + shapeID + " " + color.getRGB());
 			}
 
-			// for move mode, update moveFrom and movingId
-			else if (curr != null && mode == Mode.MOVE) {
+			// for move mode, update moveFrom and movingId (the shape is drawn live, on top, until released)
+			else if (pressed != null && mode == Mode.MOVE) {
 				moveFrom = p;
 				movingId = shapeID;
+				repaint(pressed.getBounds());
 			}
 
 			// for delete mode, send delete request to the server
-			else if (curr != null && mode == Mode.DELETE) {
-				comm.send("delete " + shapeID);
-				curr = null;
+			else if (pressed != null && mode == Mode.DELETE) {
+				request("delete " + shapeID);
 			}
 		}
-		repaint();  // display the change
+		if (curr != null) repaint(curr.getBounds());  // display the change
 	}
 
 	/**
@@ -229,26 +332,31 @@ public class Editor extends JFrame {
 		// TODO: YOUR CODE HERE
 		// for draw mode, update the corner of the object
 		if (mode == Mode.DRAW && curr != null && drawFrom != null) {
+			Bounds before = curr.getBounds();
 			switch (shapeType) {
 				case "ellipse" -> ((Ellipse) curr).setCorners(drawFrom.x, drawFrom.y, p.x, p.y);
 				case "rectangle" -> ((Rectangle) curr).setCorners(drawFrom.x, drawFrom.y, p.x, p.y);
 				case "polyline" -> {
-					((Polyline) curr).addSegment(new Segment(drawFrom.x, drawFrom.y, p.x, p.y, color));
+					((Polyline) curr).addPoint(p.x, p.y);
 					drawFrom = p; // update drawFrom to where the mouse is
+					if (strokeId != -1) {
+						strokePoints.append(' ').append(p.x).append(' ').append(p.y);
+						if (++strokeCount >= strokeBatch) sendStrokePoints();
+					}
 				}
 				case "segment" -> {
 					((Segment) curr).setStart(drawFrom.x, drawFrom.y);
 					((Segment) curr).setEnd(p.x, p.y);
 				}
 			}
-			repaint(); // display the change
+			repaint(curr.getBounds().union(before)); // display the change
 		}
 
 		// for move mode, send request to drag the shape
 		else if (mode == Mode.MOVE && movingId != -1 && moveFrom != null) {
 			int dx = p.x - moveFrom.x;
 			int dy = p.y - moveFrom.y;
-			comm.send("move " + movingId + " " + dx + " " + dy); // send message to the server
+			request("move " + movingId + " " + dx + " " + dy); // send message to the server
 			moveFrom = p; // update the current point for dragging again
 		}
 	}
@@ -260,23 +368,82 @@ public class Editor extends JFrame {
 	 */
 	public void handleRelease() {
 		// TODO: YOUR CODE HERE
-		if (mode == Mode.DRAW && curr != null && drawFrom != null) {
-			int id = sketch.getShapeCount() + 1; // increment id before adding the shape
-			int shapeCount = sketch.getShapeCount() + 1;
-			comm.send("add " + id + " " + shapeCount + " " + curr.toString());
+		if (mode == Mode.DRAW && strokeId != -1) {
+			// the stroke is already on the server: send the last of its points and finish it
+			strokeTimer.stop();
+			sendStrokePoints();
+			comm.send("end " + strokeId);
+			strokeId = -1;
+			curr = null;
+			drawFrom = null;
+		}
+		else if (mode == Mode.DRAW && curr != null && drawFrom != null) {
+			int id = nextShapeId();
+			request("add " + id + " " + shapeCount(id) + " " + curr.toString());
 
 			// reset to null to draw the next shape
 			curr = null;
 			drawFrom = null;
 		}
 		else if (mode == Mode.MOVE && movingId != -1 && moveFrom != null){
-			// reset
+			// reset (the shape goes back into the layer)
+			Shape moved = sketch.getShape(movingId);
 			moveFrom = null;
 			movingId = -1;
+			if (moved != null) repaint(moved.getBounds());
 		}
 	}
 
+	/**
+	 * Shows a request in the sketch at once, and sends it to the server to be confirmed
+	 */
+	private void request(String request) {
+		comm.send(speculation.apply(request));
+		sketchChanged(speculation.takeLocalChange());
+	}
+
+	/**
+	 * Id for a new shape: the next of those the server has issued this editor,
+	 * or if none are left (or there is no server to issue them), one past the highest so far
+	 */
+	private int nextShapeId() {
+		int id = speculation.nextId();
+		if (id == -1) id = sketch.getShapeCount() + 1;
+		if (speculation.shouldAskForIds()) comm.send("ids");
+		return id;
+	}
+
+	/**
+	 * Shape count to send with a new shape, so it never goes down
+	 */
+	private int shapeCount(int id) {
+		return Math.max(id, sketch.getShapeCount());
+	}
+
+	/**
+	 * Sends the points added to the stroke being drawn since last time
+	 */
+	private void sendStrokePoints() {
+		if (strokeId == -1 || strokeCount == 0) return;
+		comm.send("append " + strokeId + strokePoints);
+		strokePoints.setLength(0);
+		strokeCount = 0;
+	}
+
+	/**
+	 * Usage: Editor [-trace file] [board [port]]
+	 * -- with -trace, requests are stamped and the stages of everyone's timed (see Tracer), and written to the file
+	 */
 	public static void main(String[] args) {
+		int a = 0;
+		if (args.length > 1 && args[0].equals("-trace")) {
+			Tracer tracer = new Tracer("editor");
+			tracer.exportTo(Path.of(args[1]), 5);
+			EditorCommunicator.setTracer(tracer);
+			a = 2;
+		}
+		if (args.length > a) board = args[a];
+		if (args.length > a + 1) serverPort = Integer.parseInt(args[a + 1]);
 		SwingUtilities.invokeLater(new Runnable() {
 			public void run() {
 				new Editor();
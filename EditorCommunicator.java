@@ -1,5 +1,7 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Handles communication to/from the server for the editor
@@ -10,20 +12,39 @@ import java.net.Socket;
  * @author Aimen Abdulaziz, Dartmouth College, Winter 2022
  */
 public class EditorCommunicator extends Thread {
-	private PrintWriter out;		// to server
-	private BufferedReader in;		// from server
+	private static boolean echo = false;	// whether to print every message from the server
+	private static boolean binary = true;	// whether to ask the server for binary frames rather than text lines
+	private static Tracer tracer = null;	// if tracing requests: stamps this editor's, and times everyone's on arrival
+
+	private OutputStream out;		// to server
+	private BinaryCodec codec;		// if using binary frames: encodes requests (on the sending thread)
+	private LineReader in;			// from server
 	protected Editor editor;		// handling communication for
+	private Speculation speculation;	// the editor's sketch, as the server has it and as the editor shows it
+	private MessageHandler handler;	// applies the server's messages to the server's version of it (reused for all of them)
+	private int clientId = 0;		// the server's number for this editor
+	private ConcurrentLinkedQueue<long[]> unpainted = new ConcurrentLinkedQueue<long[]>();	// traced requests decoded: when made, when decoded
 
 	/**
-	 * Establishes connection and in/out pair
+	 * Establishes connection and in/out pair, and moves to the board (if not the server's default)
 	 */
-	public EditorCommunicator(String serverIP, Editor editor) {
+	public EditorCommunicator(String serverIP, int port, String board, Editor editor) {
 		this.editor = editor;
+		speculation = editor.getSpeculation();
+		handler = new MessageHandler(speculation.confirmed());
+		handler.setControl(tracer != null ? new TracingControl() : speculation); // confirmations, and ids for new shapes
 		System.out.println("connecting to " + serverIP + "...");
 		try {
-			Socket sock = new Socket(serverIP, 4242);
-			out = new PrintWriter(sock.getOutputStream(), true);
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
+			Socket sock = new Socket(serverIP, port);
+			out = new BufferedOutputStream(sock.getOutputStream());
+			in = new LineReader(sock.getInputStream());
+			if (binary) {
+				// from here on, requests go as frames; the server's messages do too once it has answered
+				out.write(BinaryCodec.HELLO_LINE);
+				out.flush();
+				codec = new BinaryCodec();
+			}
+			if (!board.equals(SketchServer.defaultBoard)) send("board " + board);
 			System.out.println("...connected");
 		}
 		catch (IOException e) {
@@ -32,11 +53,76 @@ public class EditorCommunicator extends Thread {
 		}
 	}
 
+	/**
+	 * Stamps this editor's requests, and times everyone's (see Tracer); call before connecting
+	 */
+	public static void setTracer(Tracer t) {
+		tracer = t;
+	}
+
+	/**
+	 * Passes the server's messages for the editor on to the speculation, timing the traced requests
+	 * of other editors as they arrive
+	 */
+	private class TracingControl implements MessageHandler.Control {
+		public void clientId(int id) {
+			clientId = id;
+			speculation.clientId(id);
+		}
+
+		public void idsIssued(int first, int count) {
+			speculation.idsIssued(first, count);
+		}
+
+		public void confirmed(int client, int seq) {
+			speculation.confirmed(client, seq);
+		}
+
+		public void traced(int client, int seq, long origin, long broadcast) {
+			long now = Tracer.now();
+			if (broadcast != 0) tracer.record(Tracer.Stage.FANOUT, broadcast, now);
+			// this editor's own showed when it was made; the others' show once repainted
+			if (client != clientId) unpainted.add(new long[] {origin, now});
+		}
+	}
+
+	/**
+	 * Tells the communicator that the editor has repainted (on the event thread), so the traced requests
+	 * it has decoded since the last time are now showing
+	 */
+	public void painted() {
+		if (tracer == null) return;
+		long now = Tracer.now();
+		long[] t;
+		while ((t = unpainted.poll()) != null) {
+			tracer.record(Tracer.Stage.REPAINT, t[1], now);
+			tracer.record(Tracer.Stage.TOTAL, t[0], now);
+		}
+	}
+
 	/**
 	 * Sends message to the server
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public synchronized void send(String msg) {
+		if (tracer != null && msg.startsWith("@")) {
+			// "@seq %origin request"
+			int space = msg.indexOf(' ');
+			if (space > 0) msg = msg.substring(0, space) + " %" + Tracer.now() + msg.substring(space);
+		}
+		try {
+			if (codec != null) {
+				codec.reset();
+				codec.encode(msg);
+				out.write(codec.buffer(), 0, codec.size());
+			}
+			else {
+				out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
+		}
+		catch (IOException e) {
+			System.err.println("couldn't send " + msg);
+		}
 	}
 
 	/**
@@ -46,16 +132,33 @@ public class EditorCommunicator extends Thread {
 		try {
 			// Handle messages
 			// TODO: YOUR CODE HERE
-			String line;
-			// read from in socket
-			while ((line = in.readLine()) != null){
-				// print out what has been read
-				System.out.println(line);
-
-				// make a new MessageHandler object that will call the appropriate method to handle the requests
-				MessageHandler handler = new MessageHandler(editor.getSketch());
-				handler.decode(line);
-				editor.repaint(); // display the change
+			boolean framed = false;		// whether the server has switched to frames
+			BinaryCodec printer = new BinaryCodec();
+			// read from in socket (each line or frame is parsed where it was read, not copied out)
+			while (true) {
+				if (!framed) {
+					CharSequence line = in.readLine();
+					if (line == null) break;
+					if (BinaryCodec.isHello(line)) {
+						framed = true; // the server's answer to our asking for frames
+						continue;
+					}
+					// print out what has been read
+					if (echo) System.out.println(line);
+					handler.decode(line);
+				}
+				else {
+					if (!in.readFrame()) break;
+					if (echo) System.out.println(printer.toText(in.frameBuffer(), in.frameStart(), in.frameLength()));
+					handler.decode(in.frameBuffer(), in.frameStart(), in.frameLength());
+				}
+				// once all that arrived together is in, reconcile the editor's own requests with it,
+				// and display the change, just where it happened
+				if (!in.hasBuffered()) {
+					Bounds changed = speculation.serverChanged();
+					if (changed == null) unpainted.clear(); // nothing to repaint, so nothing to wait for
+					editor.sketchChanged(changed);
+				}
 			}
 		}
 		catch (IOException e) {
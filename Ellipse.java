@@ -12,6 +12,7 @@ import java.awt.Graphics;
 public class Ellipse implements Shape {
 	private int x1, y1, x2, y2;		// upper left and lower right
 	private Color color;
+	private Bounds bounds;			// kept up to date with the corners
 
 	/**
 	 * An "empty" ellipse, with only one point set so far
@@ -20,6 +21,7 @@ public class Ellipse implements Shape {
 		this.x1 = x1; this.x2 = x1;
 		this.y1 = y1; this.y2 = y1;
 		this.color = color;
+		bounds = new Bounds(x1, y1, x1, y1);
 	}
 
 	/**
@@ -39,22 +41,27 @@ public class Ellipse implements Shape {
 		this.y1 = Math.min(y1, y2);
 		this.x2 = Math.max(x1, x2);
 		this.y2 = Math.max(y1, y2);
+		bounds = new Bounds(this.x1, this.y1, this.x2, this.y2);
 	}
 
 	@Override
 	public boolean contains(int x, int y) {
+		if (!bounds.contains(x, y)) return false; // cheap rejection of almost every point
+
 		double a = (x2-x1)/2.0, b = (y2-y1)/2.0;
 		double dx = x - (x1 + a); // horizontal distance from center
 		double dy = y - (y1 + b); // vertical distance from center
 
 		// Apply the standard geometry formula. (See CRC, 29th edition, p. 178.)
-		return Math.pow(dx / a, 2) + Math.pow(dy / b, 2) <= 1;
+		// multiplied through by a^2 b^2, so there is no division (and a flat ellipse still works)
+		return dx*dx*b*b + dy*dy*a*a <= a*a*b*b;
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds = bounds.translate(dx, dy);
 	}
 
 	@Override
@@ -67,12 +74,22 @@ public class Ellipse implements Shape {
 		this.color = color;
 	}
 
+	@Override
+	public Bounds getBounds() {
+		return bounds;
+	}
+
 	@Override
 	public void draw(Graphics g) {
 		g.setColor(color);
 		g.fillOval(x1, y1, x2-x1, y2-y1);
 	}
 
+	@Override
+	public Shape copy() {
+		return new Ellipse(x1, y1, x2, y2, color);
+	}
+
 	@Override
 	public String toString() {
 		return "ellipse "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
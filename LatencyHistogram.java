@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of latencies (in nanoseconds) in log-linear buckets: exact below 128 ns, and within 1/64 (about 1.6%) above,
+ * so percentiles out to p999 can be read off a fixed, small array however many values are recorded.
+ * Any number of threads may record at once.
+ */
+public class LatencyHistogram {
+	private static final int subBits = 6;							// mantissa bits kept per power of two
+	private static final int linear = 2 << subBits;					// values below this have a bucket each
+	private static final int maxExponent = 40;						// about 18 minutes; longer ones count as that
+	private static final int size = linear + (maxExponent - subBits) * (1 << subBits);
+
+	private final AtomicLongArray counts = new AtomicLongArray(size);
+
+	/**
+	 * Counts one latency
+	 */
+	public void record(long nanos) {
+		counts.incrementAndGet(bucket(Math.max(0, nanos)));
+	}
+
+	/**
+	 * Adds another histogram's counts to this one's
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < size; i++) {
+			long n = other.counts.get(i);
+			if (n != 0) counts.addAndGet(i, n);
+		}
+	}
+
+	/**
+	 * How many latencies have been recorded
+	 */
+	public long getCount() {
+		long total = 0;
+		for (int i = 0; i < size; i++) total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * The latency that fraction p (0 to 1) of those recorded are at or below (to the bucket's precision; 0 if none)
+	 */
+	public long percentile(double p) {
+		long total = getCount();
+		if (total == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(p * total));
+		long seen = 0;
+		for (int i = 0; i < size; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return highest(i);
+		}
+		return highest(size - 1);
+	}
+
+	/**
+	 * The longest latency recorded (to the bucket's precision)
+	 */
+	public long getMax() {
+		for (int i = size - 1; i >= 0; i--) {
+			if (counts.get(i) != 0) return highest(i);
+		}
+		return 0;
+	}
+
+	/**
+	 * Which bucket a latency goes in
+	 */
+	private static int bucket(long nanos) {
+		if (nanos < linear) return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent >= maxExponent) return size - 1;
+		int mantissa = (int) (nanos >>> (exponent - subBits)) & ((1 << subBits) - 1);
+		return linear + (exponent - subBits - 1) * (1 << subBits) + mantissa;
+	}
+
+	/**
+	 * The largest latency that goes in a bucket
+	 */
+	private static long highest(int bucket) {
+		if (bucket < linear) return bucket;
+		int exponent = (bucket - linear) / (1 << subBits) + subBits + 1;
+		int mantissa = (bucket - linear) % (1 << subBits);
+		long low = (1L << exponent) + ((long) mantissa << (exponent - subBits));
+		return low + (1L << (exponent - subBits)) - 1;
+	}
+}
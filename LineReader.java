@@ -0,0 +1,143 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads newline-terminated protocol lines from a stream into one reusable buffer,
+ * handing each out as a CharSequence view of that buffer (rather than a new String per line).
+ * The protocol is plain ASCII, so each byte is one char.
+ *
+ * The view is only valid until the next call to readLine.
+ * Once a connection has switched to binary frames, readFrame reads them from the same buffer.
+ */
+public class LineReader implements CharSequence {
+	private InputStream in;
+	private byte[] buf = new byte[8192];	// bytes read from the stream
+	private int start = 0, limit = 0;		// unconsumed bytes are buf[start..limit)
+	private int lineStart, lineEnd;			// current line is buf[lineStart..lineEnd)
+
+	public LineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads the next line (without its line terminator)
+	 * @return this, viewing the line; or null at the end of the stream
+	 */
+	public CharSequence readLine() throws IOException {
+		int scan = start;
+		while (true) {
+			for (; scan < limit; scan++) {
+				if (buf[scan] == '\n') {
+					lineStart = start;
+					lineEnd = scan > start && buf[scan-1] == '\r' ? scan - 1 : scan;
+					start = scan + 1;
+					return this;
+				}
+			}
+			scan -= start; // fill moves what is left to the front
+			if (!fill()) {
+				if (limit == start) return null;
+				// last line had no terminator
+				lineStart = start;
+				lineEnd = limit;
+				start = limit;
+				return this;
+			}
+		}
+	}
+
+	/**
+	 * Whether more of the stream has already been read in, past the current line or frame
+	 * (so that work can wait until everything that arrived together has been handled)
+	 */
+	public boolean hasBuffered() {
+		return start < limit;
+	}
+
+	/**
+	 * Reads the next length-prefixed frame (once the connection has switched to BinaryCodec frames)
+	 * @return whether there was one; if so, it is frameBuffer()[frameStart() .. frameStart()+frameLength()),
+	 * valid until the next read
+	 */
+	public boolean readFrame() throws IOException {
+		while (true) {
+			// the length prefix, if it has all arrived
+			int p = start, length = 0;
+			boolean prefixed = false;
+			for (int shift = 0; p < limit; shift += 7) {
+				if (shift > 28) throw new IOException("bad frame length");
+				byte b = buf[p++];
+				length |= (b & 0x7f) << shift;
+				if (b >= 0) {
+					prefixed = true;
+					break;
+				}
+			}
+			if (prefixed) {
+				if (length < 0 || length > BinaryCodec.maxFrame) throw new IOException("frame too long: " + length);
+				if (limit - p >= length) {
+					lineStart = p;
+					lineEnd = p + length;
+					start = lineEnd;
+					return true;
+				}
+			}
+			if (!fill()) {
+				if (limit == start) return false;
+				throw new EOFException("stream ended inside a frame");
+			}
+		}
+	}
+
+	public byte[] frameBuffer() {
+		return buf;
+	}
+
+	public int frameStart() {
+		return lineStart;
+	}
+
+	public int frameLength() {
+		return lineEnd - lineStart;
+	}
+
+	/**
+	 * Moves the unconsumed bytes to the front of the buffer (growing it if they fill it) and reads more after them
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(buf, start, buf, 0, limit - start);
+			limit -= start;
+			start = 0;
+		}
+		if (limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2); // a very long line or frame
+		int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0) return false;
+		limit += n;
+		return true;
+	}
+
+	@Override
+	public int length() {
+		return lineEnd - lineStart;
+	}
+
+	@Override
+	public char charAt(int index) {
+		return (char) (buf[lineStart + index] & 0xff);
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		return toString().substring(from, to);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, lineStart, lineEnd - lineStart, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,372 @@
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a SketchServer with many synthetic editors, without any windows, to size servers and catch regressions.
+ * Each editor connects and talks to the server just as EditorCommunicator does (asking for binary frames,
+ * numbering its requests, taking shape ids from the blocks it is issued, and applying everything the server
+ * sends to a sketch of its own), and makes requests at a steady rate from a mix of kinds.
+ * Every editor runs on two threads, virtual ones where the JVM has them.
+ *
+ * It reports, each second and at the end, the requests sent and passed back per second, and percentiles of the
+ * time from sending a request to the server passing it back tagged with the editor's number.
+ */
+public class LoadGenerator {
+	/**
+	 * The kinds of request an editor makes
+	 */
+	public enum Kind {
+		ADD,		// a new ellipse, rectangle or segment
+		POLYLINE,	// a freehand stroke: "stroke", a few "append"s and "end"
+		DRAG,		// a burst of moves of one of the editor's shapes
+		RECOLOR,	// one of its shapes
+		DELETE		// one of its shapes
+	}
+
+	private static final int idsLow = 16;			// ask for more ids when fewer than this are left
+	private static final int dragMoves = 10;		// moves in a drag
+	private static final int strokeAppends = 3;		// appends in a stroke, of strokePoints points each
+	private static final int strokePoints = 8;
+	private static final int window = 1024;			// requests an editor may have outstanding (timestamps kept)
+
+	private static final LatencyHistogram latency = new LatencyHistogram();	// send to echo, over the whole run
+	private static final AtomicLong sent = new AtomicLong();		// numbered requests sent
+	private static final AtomicLong echoed = new AtomicLong();		// and passed back
+	private static final AtomicLong received = new AtomicLong();	// lines or frames from the server, to all the editors
+
+	/**
+	 * One synthetic editor
+	 */
+	private static class SyntheticEditor implements MessageHandler.Control {
+		private final int number;
+		private final Random random;
+		private final Socket sock;
+		private final OutputStream out;
+		private final LineReader in;
+		private final BinaryCodec codec;				// if using binary frames (only the sending thread uses it)
+		private final MessageHandler handler;			// applies what the server sends to the editor's own sketch
+		private final Sketch sketch = new Sketch();
+		private final AtomicLongArray sentAt = new AtomicLongArray(window);	// when each numbered request went, by seq
+		private int seq = 0;							// number of the last request sent
+		private volatile int clientId = 0;				// the server's number for this editor
+		private int confirmedSeq = 0;					// the last of its requests passed back
+		private int nextId = 0, idEnd = 0;				// ids nextId .. idEnd-1 are issued and unused (guarded by this)
+		private boolean idsAsked = false;
+		private final List<Integer> mine = new ArrayList<Integer>();	// ids of the shapes it has added and not deleted
+		private final int x0, y0, side;					// the square it draws in
+
+		/**
+		 * @param size side of the board (square) the editors draw on
+		 * @param viewport if more than 0: side of a square of the board to draw in, and to ask for as a viewport
+		 */
+		SyntheticEditor(int number, String host, int port, boolean binary, String board, int size, int viewport) throws IOException {
+			this.number = number;
+			random = new Random(number);
+			side = viewport > 0 ? Math.min(viewport, size) : size;
+			x0 = random.nextInt(size - side + 1);
+			y0 = random.nextInt(size - side + 1);
+			sock = new Socket(host, port);
+			sock.setTcpNoDelay(true);
+			out = new BufferedOutputStream(sock.getOutputStream());
+			in = new LineReader(sock.getInputStream());
+			handler = new MessageHandler(sketch);
+			handler.setControl(this);
+			if (binary) {
+				out.write(BinaryCodec.HELLO_LINE);
+				codec = new BinaryCodec();
+			}
+			else {
+				codec = null;
+			}
+			if (board != null) send("board " + board);
+			if (viewport > 0) send("viewport " + x0 + " " + y0 + " " + (x0 + side - 1) + " " + (y0 + side - 1));
+		}
+
+		public void clientId(int id) {
+			clientId = id;
+		}
+
+		public synchronized void idsIssued(int first, int count) {
+			nextId = first;
+			idEnd = first + count;
+			idsAsked = false;
+		}
+
+		public void confirmed(int client, int seq) {
+			if (client != clientId) return;
+			// a batched frame confirms all of the editor's requests up to seq at once
+			long now = System.nanoTime();
+			for (int s = confirmedSeq + 1; s <= seq; s++) {
+				latency.record(now - sentAt.get(s & (window - 1)));
+				echoed.incrementAndGet();
+			}
+			confirmedSeq = Math.max(confirmedSeq, seq);
+		}
+
+		/**
+		 * Reads and applies everything the server sends, until it hangs up or the connection is closed
+		 */
+		void read() {
+			try {
+				boolean framed = false;
+				while (true) {
+					if (!framed) {
+						CharSequence line = in.readLine();
+						if (line == null) break;
+						if (BinaryCodec.isHello(line)) {
+							framed = true;
+							continue;
+						}
+						received.incrementAndGet();
+						handler.decode(line);
+					}
+					else {
+						if (!in.readFrame()) break;
+						received.incrementAndGet();
+						handler.decode(in.frameBuffer(), in.frameStart(), in.frameLength());
+					}
+				}
+			}
+			catch (IOException e) {
+				// closed at the end of the run
+			}
+		}
+
+		/**
+		 * Makes requests from the mix, rate a second on average, until the deadline
+		 */
+		void write(int[] mix, double rate, long deadline) {
+			int total = 0;
+			for (int weight : mix) total += weight;
+			long interval = (long) (1e9 / rate);
+			long next = System.nanoTime() + (long) (random.nextDouble() * interval); // don't all start at once
+			try {
+				while (next < deadline) {
+					LockSupport.parkNanos(next - System.nanoTime());
+					int pick = random.nextInt(total);
+					int kind = 0;
+					while (pick >= mix[kind]) pick -= mix[kind++];
+					request(Kind.values()[kind]);
+					next += interval;
+				}
+			}
+			catch (IOException e) {
+				System.err.println("editor " + number + ": " + e);
+			}
+		}
+
+		/**
+		 * Makes one request of the kind (an add instead, if the editor has no shape to work on)
+		 */
+		private void request(Kind kind) throws IOException {
+			if (mine.isEmpty() && kind != Kind.POLYLINE) kind = Kind.ADD;
+			switch (kind) {
+				case ADD -> {
+					int id = takeId();
+					if (id < 0) return;
+					int x = x0 + random.nextInt(Math.max(1, side - 40)), y = y0 + random.nextInt(Math.max(1, side - 40));
+					String type = switch (random.nextInt(3)) {
+						case 0 -> "ellipse";
+						case 1 -> "rectangle";
+						default -> "segment";
+					};
+					numbered("add " + id + " " + Math.max(id, sketch.getShapeCount()) + " " + type + " " + x + " " + y + " "
+							+ (x + 10 + random.nextInt(30)) + " " + (y + 10 + random.nextInt(30)) + " " + random.nextInt());
+					mine.add(id);
+				}
+				case POLYLINE -> {
+					int id = takeId();
+					if (id < 0) return;
+					int x = x0 + random.nextInt(Math.max(1, side - 40)), y = y0 + random.nextInt(Math.max(1, side - 40));
+					numbered("stroke " + id + " " + Math.max(id, sketch.getShapeCount()) + " " + x + " " + y + " " + random.nextInt());
+					for (int a = 0; a < strokeAppends; a++) {
+						StringBuilder append = new StringBuilder("append ").append(id);
+						for (int p = 0; p < strokePoints; p++) {
+							x += random.nextInt(7) - 3;
+							y += random.nextInt(7) - 3;
+							append.append(' ').append(x).append(' ').append(y);
+						}
+						send(append.toString());
+					}
+					send("end " + id);
+					mine.add(id);
+				}
+				case DRAG -> {
+					int id = mine.get(random.nextInt(mine.size()));
+					for (int m = 0; m < dragMoves; m++) {
+						numbered("move " + id + " " + (random.nextInt(7) - 3) + " " + (random.nextInt(7) - 3));
+					}
+				}
+				case RECOLOR -> numbered("recolor " + mine.get(random.nextInt(mine.size())) + " " + random.nextInt());
+				case DELETE -> numbered("delete " + mine.remove(random.nextInt(mine.size())));
+			}
+		}
+
+		/**
+		 * A shape id from the editor's blocks, asking for another block when they run low (-1 if none is left yet)
+		 */
+		private int takeId() throws IOException {
+			boolean ask;
+			int id = -1;
+			synchronized (this) {
+				if (nextId < idEnd) id = nextId++;
+				ask = !idsAsked && clientId != 0 && idEnd - nextId < idsLow;
+				if (ask) idsAsked = true;
+			}
+			if (ask) send("ids");
+			return id;
+		}
+
+		/**
+		 * Sends a request numbered "@seq", noting when
+		 */
+		private void numbered(String request) throws IOException {
+			seq++;
+			sentAt.set(seq & (window - 1), System.nanoTime());
+			sent.incrementAndGet();
+			send("@" + seq + " " + request);
+		}
+
+		private void send(String msg) throws IOException {
+			if (codec != null) {
+				codec.reset();
+				codec.encode(msg);
+				out.write(codec.buffer(), 0, codec.size());
+			}
+			else {
+				out.write((msg + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
+		}
+
+		void close() {
+			try {
+				sock.close();
+			}
+			catch (IOException e) {
+				// already gone
+			}
+		}
+	}
+
+	/**
+	 * A new thread for the runnable: a virtual one if the JVM has them (asked for by reflection, so this still
+	 * compiles and runs on JVMs without), else a daemon platform thread
+	 */
+	private static Thread newThread(Runnable r, String name) {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Object b = builder.getMethod("name", String.class).invoke(ofVirtual.invoke(null), name);
+			return (Thread) builder.getMethod("unstarted", Runnable.class).invoke(b, r);
+		}
+		catch (ReflectiveOperationException e) {
+			Thread t = new Thread(null, r, name, 256 * 1024);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	private static boolean hasVirtualThreads() {
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		}
+		catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Usage: LoadGenerator [-host host] [-port port] [-editors n] [-seconds s] [-rate requestsPerSecond]
+	 *   [-mix add,polyline,drag,recolor,delete] [-board name] [-text] [-size side] [-viewport side]
+	 * -- rate is per editor; the mix gives the relative weight of each kind of request (default 10,5,60,20,5);
+	 * editors draw anywhere on a board of the given size (800 by default), or with -viewport, each in a square
+	 * of its own that big, placed at random, which is all it asks the server for
+	 */
+	public static void main(String[] args) throws Exception {
+		String host = "localhost";
+		int port = 4242;
+		int editors = 100;
+		int seconds = 10;
+		double rate = 10;
+		int[] mix = {10, 5, 60, 20, 5};
+		String board = null;
+		boolean binary = true;
+		int size = 800;
+		int viewport = 0;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-host" -> host = args[++i];
+				case "-port" -> port = Integer.parseInt(args[++i]);
+				case "-editors" -> editors = Integer.parseInt(args[++i]);
+				case "-seconds" -> seconds = Integer.parseInt(args[++i]);
+				case "-rate" -> rate = Double.parseDouble(args[++i]);
+				case "-board" -> board = args[++i];
+				case "-text" -> binary = false;
+				case "-size" -> size = Integer.parseInt(args[++i]);
+				case "-viewport" -> viewport = Integer.parseInt(args[++i]);
+				case "-mix" -> {
+					String[] weights = args[++i].split(",");
+					if (weights.length != mix.length) throw new IllegalArgumentException("-mix needs " + mix.length + " weights");
+					for (int k = 0; k < mix.length; k++) mix[k] = Integer.parseInt(weights[k]);
+				}
+				default -> throw new IllegalArgumentException("unknown argument " + args[i]);
+			}
+		}
+
+		System.out.printf("# %d editors at %.1f requests/s each for %d s, %s, on %s threads%n", editors, rate, seconds,
+				binary ? "binary" : "text", hasVirtualThreads() ? "virtual" : "platform");
+		List<SyntheticEditor> all = new ArrayList<SyntheticEditor>();
+		for (int e = 0; e < editors; e++) {
+			SyntheticEditor editor = new SyntheticEditor(e, host, port, binary, board, size, viewport);
+			all.add(editor);
+			newThread(editor::read, "editor-" + e + "-reader").start();
+		}
+
+		long start = System.nanoTime();
+		long deadline = start + seconds * 1_000_000_000L;
+		CountDownLatch done = new CountDownLatch(editors);
+		for (SyntheticEditor editor : all) {
+			int[] weights = mix;
+			double perEditor = rate;
+			newThread(() -> {
+				editor.write(weights, perEditor, deadline);
+				done.countDown();
+			}, "editor-" + editor.number + "-writer").start();
+		}
+
+		long lastSent = 0, lastEchoed = 0, lastReceived = 0;
+		for (int s = 1; s <= seconds; s++) {
+			LockSupport.parkNanos(start + s * 1_000_000_000L - System.nanoTime());
+			long nowSent = sent.get(), nowEchoed = echoed.get(), nowReceived = received.get();
+			System.out.printf("%3d s\tsent %8d/s\techoed %8d/s\treceived %8d/s\tp50 %s\tp99 %s\tp999 %s%n", s,
+					nowSent - lastSent, nowEchoed - lastEchoed, nowReceived - lastReceived, millis(latency.percentile(0.5)),
+					millis(latency.percentile(0.99)), millis(latency.percentile(0.999)));
+			lastSent = nowSent;
+			lastEchoed = nowEchoed;
+			lastReceived = nowReceived;
+		}
+		done.await();
+		Thread.sleep(1000); // for the last requests to come back
+		for (SyntheticEditor editor : all) editor.close();
+
+		System.out.printf("# sent %d, echoed %d (%.0f/s); received %d (%.0f/s per editor); latency p50 %s, p99 %s, p999 %s, max %s%n",
+				sent.get(), echoed.get(), echoed.get() / (double) seconds, received.get(), received.get() / (double) seconds / editors,
+				millis(latency.percentile(0.5)), millis(latency.percentile(0.99)), millis(latency.percentile(0.999)),
+				millis(latency.getMax()));
+	}
+
+	private static String millis(long nanos) {
+		return String.format("%.2f ms", nanos / 1e6);
+	}
+}
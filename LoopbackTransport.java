@@ -0,0 +1,77 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * A ReplicationTransport between nodes in the same process, so a cluster can be run and tested on one machine.
+ * Each node has a thread of its own that delivers the messages sent to it, one at a time and in the order sent;
+ * senders never wait for it (its queue is unbounded).
+ */
+public class LoopbackTransport implements ReplicationTransport {
+	private final int nodeId;
+	private final LoopbackTransport[] nodes;	// the whole cluster, this node included
+	private final ExecutorService inbox;		// delivers the messages sent to this node
+	private volatile Receiver receiver = null;
+
+	private LoopbackTransport(int nodeId, LoopbackTransport[] nodes) {
+		this.nodeId = nodeId;
+		this.nodes = nodes;
+		inbox = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "loopback-node-" + nodeId);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * The transports of a cluster of n nodes, connected to each other (one for each node's server)
+	 */
+	public static LoopbackTransport[] cluster(int n) {
+		LoopbackTransport[] nodes = new LoopbackTransport[n];
+		for (int i = 0; i < n; i++) {
+			nodes[i] = new LoopbackTransport(i, nodes);
+		}
+		return nodes;
+	}
+
+	@Override
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return nodes.length;
+	}
+
+	@Override
+	public void setReceiver(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public void forward(int leader, String board, String request) {
+		nodes[leader].deliver(r -> r.forwarded(board, request));
+	}
+
+	@Override
+	public void replicate(String board, long version, String request) {
+		for (LoopbackTransport node : nodes) {
+			if (node != this) node.deliver(r -> r.replicated(board, version, request));
+		}
+	}
+
+	/**
+	 * Queues a message for this node's receiver
+	 */
+	private void deliver(Consumer<Receiver> message) {
+		inbox.execute(() -> {
+			try {
+				message.accept(receiver);
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+}
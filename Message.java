@@ -0,0 +1,51 @@
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One or more protocol lines on their way to clients, encoded at most once
+ * however many clients it is sent to
+ */
+public class Message {
+	private String text;			// the lines, without the final newline
+	private volatile byte[] bytes = null;	// text plus final newline, as sent on the wire (encoded on first use)
+	private volatile byte[] frames = null;	// the lines as binary frames, for clients that asked for them (likewise)
+
+	public Message(String text) {
+		this.text = text;
+	}
+
+	public String text() {
+		return text;
+	}
+
+	/**
+	 * The message as it goes on the wire; shared, so must not be modified
+	 */
+	public byte[] bytes() {
+		byte[] b = bytes;
+		if (b == null) {
+			// threads racing here just encode it twice
+			b = (text + "\n").getBytes(StandardCharsets.UTF_8);
+			bytes = b;
+		}
+		return b;
+	}
+
+	/**
+	 * The message as it goes to a client that has switched to binary frames; shared, so must not be modified
+	 */
+	public byte[] frames() {
+		byte[] f = frames;
+		if (f == null) {
+			BinaryCodec codec = new BinaryCodec();
+			codec.encodeLines(text);
+			f = codec.toByteArray();
+			frames = f;
+		}
+		return f;
+	}
+
+	@Override
+	public String toString() {
+		return text;
+	}
+}
@@ -1,13 +1,53 @@
 import java.awt.*;
+import java.util.Arrays;
 
 /**
  * Contain common request handling methods shared by EditorCommunicator and SketchServerCommunicator
+ *
+ * One handler is kept per connection and reused for every message. Requests are parsed in place,
+ * word by word, from the line they arrived in (no split, no substrings), and colors are interned,
+ * so handling a move or recolor allocates nothing here.
  * @author Aimen Abdulaziz, Dartmouth College, Winter 2022
  */
 public class MessageHandler {
+    /**
+     * Takes the messages meant for an editor itself rather than for its sketch
+     */
+    public interface Control {
+        /**
+         * "client id": the number the server knows this editor by, in tags
+         */
+        void clientId(int id);
+
+        /**
+         * "ids first count": shape ids first .. first+count-1 are this editor's to use
+         */
+        void idsIssued(int first, int count);
+
+        /**
+         * "@client:seq" in front of a request: client's request number seq (and so all its earlier ones) has been applied
+         */
+        void confirmed(int client, int seq);
+
+        /**
+         * "@client:seq %origin %broadcast" in front of a request (see Tracer): when it was made,
+         * and when the server broadcast it (0 if it didn't say), in microseconds since the epoch
+         */
+        default void traced(int client, int seq, long origin, long broadcast) {
+        }
+    }
+
     Sketch sketch;                     // current drawing canvas
     Shape curr = null;				   // current shape (if any) being modified
 
+    private CharSequence line;         // request being parsed
+    private int pos, end;              // parse position in it, and its length
+    private int[] points = new int[64];                // coordinates of an append, reused
+    private int[] colorKeys = new int[256];            // rgb of each cached color
+    private Color[] colors = new Color[256];           // recently used colors, by hash of rgb
+    private BinaryCodec frame = new BinaryCodec();     // reads requests that arrive as binary frames
+    private Control control = null;                    // if handling an editor's messages: told of the ones for it
+
     /**
      * Constructor for single client communication
      * @param sketch drawing canvas
@@ -16,112 +56,364 @@ public class MessageHandler {
         this.sketch = sketch;
     }
 
+    public void setControl(Control control) {
+        this.control = control;
+    }
+
     /**
      * Sends editor requests to the server
-     * @param request string request received
-     */
-    public void decode(String request){
-        String[] msg = request.split(" ");
-        switch (msg[0]) {
-            case "add" -> handleAddShape(msg);
-            case "recolor" -> handleRecolor(msg);
-            case "delete" -> handleDelete(msg);
-            case "move" -> handleMove(msg);
-            default -> {
-                System.out.println(request + " is invalid");
-                System.out.println("Invalid command");
-            }
+     * @param request one request (a single line), possibly with tags in front
+     */
+    public void decode(CharSequence request){
+        line = request;
+        pos = 0;
+        end = request.length();
+        while (hasMore() && line.charAt(pos) == '@') handleTag();
+        if (!hasMore()) {
+            // nothing but tags
+        }
+        else if (word("add")) handleAddShape();
+        else if (word("move")) handleMove();
+        else if (word("append")) handleAppend();
+        else if (word("recolor")) handleRecolor();
+        else if (word("delete")) handleDelete();
+        else if (word("retire")) sketch.remove(nextInt()); // gone out of this editor's viewport (still on the board)
+        else if (word("viewport")) { } // an editor's own, echoed back (by an EchoServer); only for the sketch server
+        else if (word("stroke")) handleStroke();
+        else if (word("end")) { } // stroke finished; its points have all arrived already
+        else if (word("clear")) sketch.clear(); // server is about to resend the whole state
+        else if (word("client")) {
+            int id = nextInt();
+            if (control != null) control.clientId(id);
+        }
+        else if (word("ids")) {
+            int first = nextInt();
+            int count = nextInt();
+            if (control != null) control.idsIssued(first, count);
         }
+        else {
+            System.out.println(request + " is invalid");
+            System.out.println("Invalid command");
+        }
+        line = null;
     }
 
     /**
-     * Handles all requests to draw a new shape in the sketch
-     * @param msg request received from the editor class
-     */
-    public void handleAddShape (String[] msg){
-        int id = Integer.parseInt(msg[1]);
-        int shapeCount = Integer.parseInt(msg[2]);
-        if (msg[3].equals("ellipse") || msg[3].equals("rectangle") || msg[3].equals("segment")){
-            // parse data from the received request
-            int x1 = Integer.parseInt(msg[4]);
-            int y1 = Integer.parseInt(msg[5]);
-            int x2 = Integer.parseInt(msg[6]);
-            int y2 = Integer.parseInt(msg[7]);
-            int colorRGB = Integer.parseInt(msg[8]);
-
-            // add the shapes accordingly
-            if (msg[3].equals("ellipse")) {
-                curr = new Ellipse(x1, y1, x2, y2, new Color(colorRGB));
-                sketch.add(id, curr, shapeCount); // add to the map
+     * Applies a request that arrived as a binary frame (see BinaryCodec), straight from its fields
+     * @param buf holds the frame, without its length prefix
+     */
+    public void decode(byte[] buf, int offset, int length){
+        frame.setFrame(buf, offset, length);
+        byte opcode = frame.readByte();
+        while (opcode == BinaryCodec.TAG) {
+            int client = frame.readVarint();
+            int seq = frame.readVarint();
+            if (control != null) control.confirmed(client, seq);
+            opcode = frame.hasMoreFields() ? frame.readByte() : -1;
+            long origin = 0, broadcast = 0;
+            if (opcode == BinaryCodec.STAMP) {
+                origin = frame.readVarlong();
+                opcode = frame.hasMoreFields() ? frame.readByte() : -1;
             }
-            else if (msg[3].equals("rectangle")) {
-                curr = new Rectangle(x1, y1, x2, y2, new Color(colorRGB));
-                sketch.add(id, curr, shapeCount);
+            if (opcode == BinaryCodec.STAMP) {
+                broadcast = frame.readVarlong();
+                opcode = frame.hasMoreFields() ? frame.readByte() : -1;
+            }
+            if (origin != 0 && control != null) control.traced(client, seq, origin, broadcast);
+            if (opcode == -1) return; // nothing but tags
+        }
+        switch (opcode) {
+            case BinaryCodec.TEXT -> decode(frame.readText());
+            case BinaryCodec.ADD -> handleAddFrame();
+            case BinaryCodec.MOVE -> {
+                int shapeID = frame.readVarint();
+                int dx = frame.readSigned();
+                sketch.move(shapeID, dx, frame.readSigned());
+                curr = sketch.getShape(shapeID);
             }
-            else {
-                curr = new Segment(x1, y1, x2, y2, new Color(colorRGB));
+            case BinaryCodec.RECOLOR -> {
+                int shapeID = frame.readVarint();
+                sketch.recolor(shapeID, color(frame.readColor()));
+                curr = sketch.getShape(shapeID);
+            }
+            case BinaryCodec.DELETE -> sketch.remove(frame.readVarint());
+            case BinaryCodec.STROKE -> {
+                int id = frame.readVarint();
+                int shapeCount = frame.readVarint();
+                int x = frame.readSigned(), y = frame.readSigned();
+                curr = new Polyline(x, y, color(frame.readColor()));
                 sketch.add(id, curr, shapeCount);
             }
+            case BinaryCodec.APPEND -> {
+                int id = frame.readVarint();
+                int n = frame.readVarint();
+                // each point takes at least a byte for each coordinate, so a count the frame can't hold is corrupt
+                if (n < 0 || n > frame.remaining() / 2) throw new IllegalArgumentException("too many points: " + n);
+                if (2 * n > points.length) points = new int[Math.max(2 * n, points.length * 2)];
+                int x = 0, y = 0;
+                for (int i = 0; i < n; i++) {
+                    points[2*i] = x += frame.readSigned();
+                    points[2*i+1] = y += frame.readSigned();
+                }
+                sketch.extend(id, points, n);
+            }
+            case BinaryCodec.END -> { } // stroke finished
+            case BinaryCodec.CLEAR -> sketch.clear();
+            default -> System.out.println("Invalid frame (opcode " + opcode + ")");
         }
+    }
 
-        // parse data and add polyline
-        else if (msg[3].equals("polyline")){
-            Polyline polyline = new Polyline(Integer.parseInt(msg[5]), Integer.parseInt(msg[6]),
-                    Integer.parseInt(msg[7]), Integer.parseInt(msg[8]), new Color(Integer.parseInt(msg[8])));
-            for (int i = 10; i < msg.length; i+=6) {
-                if (msg[i].equals("segment")) {
-                    polyline.addSegment(new Segment(Integer.parseInt(msg[i+1]), Integer.parseInt(msg[i+2]), Integer.parseInt(msg[i+3]), Integer.parseInt(msg[i+4]), new Color(Integer.parseInt(msg[i+5]))));
+    /**
+     * Handles an ADD frame: id, count, kind of shape, then its corners and color, or for a polyline,
+     * its color and its runs of joints (each after the first as an offset from the one before)
+     */
+    private void handleAddFrame(){
+        int id = frame.readVarint();
+        int shapeCount = frame.readVarint();
+        byte kind = frame.readByte();
+        if (kind == BinaryCodec.POLYLINE) {
+            Color color = color(frame.readColor());
+            int numRuns = frame.readVarint();
+            Polyline polyline = null;
+            for (int r = 0; r < numRuns; r++) {
+                int count = frame.readVarint();
+                int x = frame.readSigned(), y = frame.readSigned();
+                int j = 1;
+                if (count >= 2) {
+                    // the run's first segment: starts the line, or a separate piece of it
+                    int x2 = x + frame.readSigned(), y2 = y + frame.readSigned();
+                    if (polyline == null) polyline = new Polyline(x, y, x2, y2, color);
+                    else polyline.addSegment(x, y, x2, y2);
+                    x = x2;
+                    y = y2;
+                    j = 2;
+                }
+                else if (polyline == null) {
+                    polyline = new Polyline(x, y, color);
+                }
+                for (; j < count; j++) {
+                    x += frame.readSigned();
+                    y += frame.readSigned();
+                    polyline.addPoint(x, y);
                 }
             }
+            if (polyline == null) return;
             curr = polyline;
-            sketch.add(id, curr, shapeCount);
         }
+        else {
+            int x1 = frame.readSigned(), y1 = frame.readSigned(), x2 = frame.readSigned(), y2 = frame.readSigned();
+            Color color = color(frame.readColor());
+            switch (kind) {
+                case BinaryCodec.ELLIPSE -> curr = new Ellipse(x1, y1, x2, y2, color);
+                case BinaryCodec.RECTANGLE -> curr = new Rectangle(x1, y1, x2, y2, color);
+                case BinaryCodec.SEGMENT -> curr = new Segment(x1, y1, x2, y2, color);
+                default -> {
+                    System.out.println("Invalid shape in frame (" + kind + ")");
+                    return;
+                }
+            }
+        }
+        sketch.add(id, curr, shapeCount);
     }
 
     /**
-     * Handles recolor request received from one of the client
-     * @param msg request received from the editor class
+     * Handles a tag in front of a request: "@client:seq", naming the client's own number for it
+     * (or "@seq", as the client sends it, before the server has said who it is from),
+     * and if it is being traced, " %origin %broadcast" after it
      */
-    public void handleRecolor(String[] msg){
-        // parse data from the received request
-        int shapeID = Integer.parseInt(msg[1]);
-        int colorRGB = Integer.parseInt(msg[2]);
-        curr = sketch.getShape(shapeID);
+    private void handleTag(){
+        pos++; // past the '@'
+        int client = 0;
+        int seq = nextInt();
+        if (pos < end && line.charAt(pos) == ':') {
+            pos++;
+            client = seq;
+            seq = nextInt();
+        }
+        if (control != null) control.confirmed(client, seq);
+        long origin = 0, broadcast = 0;
+        if (hasMore() && line.charAt(pos) == '%') {
+            pos++;
+            origin = nextLong();
+            if (hasMore() && line.charAt(pos) == '%') {
+                pos++;
+                broadcast = nextLong();
+            }
+        }
+        if (origin != 0 && control != null) control.traced(client, seq, origin, broadcast);
+    }
 
-        // recolor
-        if (curr != null) {
-            curr.setColor(new Color(colorRGB));
+    /**
+     * Handles all requests to draw a new shape in the sketch
+     * "add id count ellipse|rectangle|segment x1 y1 x2 y2 rgb" or "add id count polyline segment ... segment ... rgb"
+     */
+    private void handleAddShape(){
+        int id = nextInt();
+        int shapeCount = nextInt();
+        if (word("ellipse")) {
+            curr = new Ellipse(nextInt(), nextInt(), nextInt(), nextInt(), color(nextInt()));
         }
+        else if (word("rectangle")) {
+            curr = new Rectangle(nextInt(), nextInt(), nextInt(), nextInt(), color(nextInt()));
+        }
+        else if (word("segment")) {
+            curr = new Segment(nextInt(), nextInt(), nextInt(), nextInt(), color(nextInt()));
+        }
+
+        // parse data and add polyline
+        else if (word("polyline") && word("segment")) {
+            // the whole line has one color (every segment carries it too)
+            int x1 = nextInt(), y1 = nextInt(), x2 = nextInt(), y2 = nextInt();
+            Polyline polyline = new Polyline(x1, y1, x2, y2, color(nextInt()));
+            while (word("segment")) {
+                polyline.addSegment(nextInt(), nextInt(), nextInt(), nextInt());
+                nextInt(); // the segment's color
+            }
+            curr = polyline;
+        }
+        else {
+            return;
+        }
+        sketch.add(id, curr, shapeCount); // add to the map
+    }
+
+    /**
+     * Handles the start of a freehand stroke that will be streamed as it is drawn:
+     * "stroke id count x y rgb" adds a polyline that so far is just the point (x,y)
+     */
+    private void handleStroke(){
+        int id = nextInt();
+        int shapeCount = nextInt();
+        curr = new Polyline(nextInt(), nextInt(), color(nextInt()));
+        sketch.add(id, curr, shapeCount);
+    }
+
+    /**
+     * Handles more points of a stroke being drawn: "append id x1 y1 x2 y2 ..." extends the polyline through them
+     */
+    private void handleAppend(){
+        int id = nextInt();
+        int n = 0;
+        while (hasMore()) {
+            if (n == points.length) points = Arrays.copyOf(points, n * 2);
+            points[n++] = nextInt();
+        }
+        sketch.extend(id, points, n / 2);
     }
 
     /**
-     * Handles delete request received from one of the client
-     * @param msg request received from the editor class
+     * Handles recolor request received from one of the client: "recolor id rgb"
      */
-    public void handleDelete(String[] msg){
+    private void handleRecolor(){
+        // parse data from the received request
+        int shapeID = nextInt();
+        int colorRGB = nextInt();
+
+        // recolor (through the sketch, which keeps track of what has changed, and replaces the shape to do it)
+        sketch.recolor(shapeID, color(colorRGB));
+        curr = sketch.getShape(shapeID);
+    }
+
+    /**
+     * Handles delete request received from one of the client: "delete id"
+     */
+    private void handleDelete(){
         // parse datum from the received request
-        int shapeID = Integer.parseInt(msg[1]);
+        int shapeID = nextInt();
 
         // get the current shape
         sketch.remove(shapeID);
     }
 
     /**
-     * Handles move request received from one of the client
-     * @param msg request received from the editor class
+     * Handles move request received from one of the client: "move id dx dy"
      */
-    public void handleMove(String[] msg){
+    private void handleMove(){
         // parse data from the received request
-        int shapeID = Integer.parseInt(msg[1]);
-        int dx = Integer.parseInt(msg[2]);
-        int dy = Integer.parseInt(msg[3]);
+        int shapeID = nextInt();
+        int dx = nextInt();
+        int dy = nextInt();
 
-        // get the current shape
+        // move the shape (through the sketch, which keeps track of where everything is)
+        sketch.move(shapeID, dx, dy);
         curr = sketch.getShape(shapeID);
+    }
+
+    /**
+     * If the next word of the request is w, moves past it
+     * @return whether it was
+     */
+    private boolean word(String w){
+        skipSpaces();
+        int n = w.length();
+        if (end - pos < n || (end - pos > n && line.charAt(pos + n) != ' ')) return false;
+        for (int i = 0; i < n; i++) {
+            if (line.charAt(pos + i) != w.charAt(i)) return false;
+        }
+        pos += n;
+        return true;
+    }
+
+    /**
+     * Whether there is another word in the request
+     */
+    private boolean hasMore(){
+        skipSpaces();
+        return pos < end;
+    }
 
-        // move the shape
-        if (curr != null) {
-            curr.moveBy(dx, dy);
+    /**
+     * Reads the next word of the request as an integer
+     */
+    private int nextInt(){
+        skipSpaces();
+        int start = pos;
+        boolean negative = pos < end && line.charAt(pos) == '-';
+        if (negative) pos++;
+        long value = 0;
+        char c;
+        while (pos < end && (c = line.charAt(pos)) != ' ' && c != ':') {
+            int digit = c - '0';
+            if (digit < 0 || digit > 9 || value > Integer.MAX_VALUE + 1L) {
+                throw new NumberFormatException("bad number at " + start + " in: " + line);
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw new NumberFormatException("missing number at " + start + " in: " + line);
+        }
+        if (negative ? -value < Integer.MIN_VALUE : value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("number out of range at " + start + " in: " + line);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    /**
+     * Reads the next word of the request as a long (a time stamp)
+     */
+    private long nextLong(){
+        skipSpaces();
+        int start = pos;
+        while (pos < end && line.charAt(pos) != ' ') pos++;
+        return Long.parseLong(line, start, pos, 10);
+    }
+
+    private void skipSpaces(){
+        while (pos < end && line.charAt(pos) == ' ') pos++;
+    }
+
+    /**
+     * The color with that rgb, shared with earlier requests that used it
+     */
+    private Color color(int rgb){
+        int slot = (rgb * 0x9E3779B9) >>> 24; // mix all the channels into 8 bits
+        Color c = colors[slot];
+        if (c == null || colorKeys[slot] != rgb) {
+            c = new Color(rgb);
+            colors[slot] = c;
+            colorKeys[slot] = rgb;
         }
+        return c;
     }
 }
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable log of the requests the server has applied, in order, so a restarted server can rebuild its sketch.
+ *
+ * Requests are appended as BinaryCodec frames, each behind a CRC-32C of it, to memory-mapped segment files
+ * ("ops-" and the number of the first request in the file), a new segment being started when one fills up.
+ * Appending is just a copy into the mapping, on the sequencer's thread; getting it to the disk is left to
+ * a flusher thread, so a broadcast never waits for the disk. Each force covers everything appended since the
+ * last (group commit); how soon one follows an append is the FsyncPolicy's choice.
+ * If the process dies, nothing appended is lost (the mapping is the page cache); if the machine does,
+ * whatever had not been forced yet may be, and replay stops at the first record that doesn't check out.
+ *
+ * append is for one thread (the sequencer's); the flusher is the only other.
+ */
+public class OpLog implements AutoCloseable {
+	/**
+	 * When appended requests are forced to the disk
+	 */
+	public enum FsyncPolicy {
+		NONE,		// whenever the operating system writes the pages back
+		INTERVAL,	// every so many milliseconds
+		ALWAYS		// as soon as anything has been appended (one force still covering all appended in the meantime)
+	}
+
+	/**
+	 * Takes the frames of a log as it is replayed
+	 */
+	public interface FrameVisitor {
+		/**
+		 * One request, as a frame without its length prefix at buf[offset .. offset+length)
+		 */
+		void frame(byte[] buf, int offset, int length);
+	}
+
+	public static final int defaultSegmentSize = 64 << 20;
+	private static final int headerSize = 4;		// the CRC in front of each frame
+
+	/**
+	 * One file of the log, mapped whole
+	 */
+	private static class Segment {
+		final long firstOp;				// number of its first request
+		final FileChannel channel;
+		final MappedByteBuffer map;
+		int pos = 0;					// where the next record goes (appending thread)
+		volatile int written = 0;		// bytes appended, for the flusher
+		volatile boolean sealed = false;	// whether it is full (no more will be appended)
+		int forced = 0;					// bytes forced to the disk (flusher)
+		boolean synced = false;			// whether its directory entry has been forced (flusher)
+
+		Segment(Path path, long firstOp, int size) throws IOException {
+			this.firstOp = firstOp;
+			channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+		}
+	}
+
+	private final Path dir;
+	private final int segmentSize;
+	private final FsyncPolicy policy;
+	private final long intervalMillis;
+	private final BinaryCodec codec = new BinaryCodec();		// encodes each request appended
+	private final CRC32C crc = new CRC32C();
+	private Segment current;										// being appended to
+	private long nextOp;											// number of the next request appended (1 for the first)
+	private final ConcurrentLinkedQueue<Segment> unforced = new ConcurrentLinkedQueue<Segment>();	// segments the flusher still has to look at
+	private final Thread flusher;									// null if the policy is NONE
+	private volatile boolean flusherWaiting = false;				// whether it is parked until the next append
+	private volatile boolean closed = false;
+	private long forces = 0;										// number of forces so far
+
+	/**
+	 * Opens the log in dir (creating it if need be) and replays all of it
+	 * @param visitor is given every request in the log, in order (may be null)
+	 */
+	public OpLog(Path dir, int segmentSize, FsyncPolicy policy, long intervalMillis, FrameVisitor visitor) throws IOException {
+		this(dir, segmentSize, policy, intervalMillis, 0, visitor);
+	}
+
+	/**
+	 * Opens the log in dir (creating it if need be) and replays the requests after the first few
+	 * @param after number of requests already accounted for (by a snapshot), which the visitor is not given
+	 * @param visitor is given every later request in the log, in order (may be null)
+	 */
+	public OpLog(Path dir, int segmentSize, FsyncPolicy policy, long intervalMillis, long after, FrameVisitor visitor) throws IOException {
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.policy = policy;
+		this.intervalMillis = intervalMillis;
+		Files.createDirectories(dir);
+		replay(after, visitor);
+		if (policy == FsyncPolicy.NONE) {
+			flusher = null;
+		}
+		else {
+			flusher = new Thread(this::flushLoop, "oplog-flusher");
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Number of requests in the log
+	 */
+	public long size() {
+		return nextOp - 1;
+	}
+
+	/**
+	 * Number of times the log has been forced to the disk
+	 */
+	public synchronized long getForceCount() {
+		return forces;
+	}
+
+	/**
+	 * Replays the segments in order (all but the first after requests), stopping at the first record
+	 * that is missing or damaged, and makes ready to append after the last good one
+	 */
+	private void replay(long after, FrameVisitor visitor) throws IOException {
+		List<Path> paths = segmentPaths();
+		nextOp = paths.isEmpty() ? after + 1 : firstOp(paths.get(0)); // earlier segments may have been truncated
+		if (nextOp > after + 1) {
+			System.err.println("op log: requests " + (after + 1) + " to " + (nextOp - 1) + " are missing");
+		}
+		byte[] frame = new byte[256];
+		for (int i = 0; i < paths.size(); i++) {
+			Path path = paths.get(i);
+			long firstOp = firstOp(path);
+			if (firstOp != nextOp) {
+				// a gap (or overlap) in the numbering: nothing from here on can be trusted
+				setAside(paths.subList(i, paths.size()), "starts at request " + firstOp + ", not " + nextOp);
+				break;
+			}
+			Segment s = new Segment(path, firstOp, 0);
+			MappedByteBuffer map = s.map;
+			int limit = map.capacity();
+			int pos = 0;
+			boolean damaged = false;
+			while (pos + headerSize < limit) {
+				// the frame's length prefix
+				int p = pos + headerSize, length = 0, shift = 0;
+				byte b;
+				do {
+					b = map.get(p++);
+					length |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0 && p < limit && shift < 35);
+				if (length == 0 && map.getInt(pos) == 0) break; // the end: zeros from here on
+				if (length <= 0 || length > BinaryCodec.maxFrame || p + length > limit) {
+					damaged = true;
+					break;
+				}
+				if (length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+				map.get(p, frame, 0, length);
+				crc.reset();
+				for (int q = pos + headerSize; q < p; q++) crc.update(map.get(q));
+				crc.update(frame, 0, length);
+				if ((int) crc.getValue() != map.getInt(pos)) {
+					damaged = true;
+					break;
+				}
+				if (visitor != null && nextOp > after) visitor.frame(frame, 0, length);
+				nextOp++;
+				pos = p + length;
+			}
+			if (damaged) {
+				System.err.println("op log: " + path.getFileName() + " damaged after request " + (nextOp - 1) + "; replay stops there");
+				erase(map, pos);
+			}
+			s.pos = pos;
+			s.written = pos;
+			s.forced = pos;
+			s.synced = true;
+			if (current != null) current.channel.close();
+			current = s;
+			if (damaged && i + 1 < paths.size()) {
+				setAside(paths.subList(i + 1, paths.size()), "follows a damaged segment");
+				break;
+			}
+		}
+		if (nextOp <= after) {
+			// the log stops short of the snapshot (it was damaged): carry on from the snapshot
+			if (current != null) current.channel.close();
+			setAside(segmentPaths(), "ends before request " + (after + 1) + ", which the snapshot already has");
+			current = null;
+			nextOp = after + 1;
+		}
+		if (current == null) current = new Segment(segmentPath(nextOp), nextOp, segmentSize);
+		unforced.add(current);
+	}
+
+	/**
+	 * Deletes the segments that hold only requests before op (those a snapshot has made redundant);
+	 * the one being appended to is always kept. Safe from any thread.
+	 */
+	public void truncateBefore(long op) throws IOException {
+		List<Path> paths = segmentPaths();
+		for (int i = 0; i + 1 < paths.size(); i++) {
+			// a segment ends where the next one starts
+			if (firstOp(paths.get(i + 1)) > op) break;
+			Files.delete(paths.get(i));
+		}
+	}
+
+	/**
+	 * Zeros the rest of a segment from pos, so a damaged record isn't mistaken for one later
+	 */
+	private static void erase(MappedByteBuffer map, int pos) {
+		for (int p = pos; p < map.capacity(); p++) {
+			if (map.get(p) != 0) map.put(p, (byte) 0);
+		}
+		map.force();
+	}
+
+	/**
+	 * Renames segments that can't be replayed out of the way (rather than deleting them)
+	 */
+	private void setAside(List<Path> paths, String why) throws IOException {
+		for (Path path : paths) {
+			System.err.println("op log: setting " + path.getFileName() + " aside: it " + why);
+			Files.move(path, path.resolveSibling(path.getFileName() + ".damaged"), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * The log's segment files, in order
+	 */
+	private List<Path> segmentPaths() throws IOException {
+		List<Path> paths = new ArrayList<Path>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.filter(p -> p.getFileName().toString().matches("ops-\\d+\\.log")).sorted().forEach(paths::add);
+		}
+		return paths;
+	}
+
+	private Path segmentPath(long firstOp) {
+		return dir.resolve(String.format("ops-%016d.log", firstOp));
+	}
+
+	private static long firstOp(Path segment) {
+		String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring("ops-".length(), name.length() - ".log".length()));
+	}
+
+	/**
+	 * Appends a request (one line, as applied)
+	 */
+	public void append(CharSequence request) {
+		codec.reset();
+		codec.encode(request);
+		int length = codec.size();
+		if (current.pos + headerSize + length > current.map.capacity()) roll(headerSize + length);
+		crc.reset();
+		crc.update(codec.buffer(), 0, length);
+		Segment s = current;
+		s.map.put(s.pos + headerSize, codec.buffer(), 0, length);
+		s.map.putInt(s.pos, (int) crc.getValue()); // last, so a record is never whole before its frame is
+		s.pos += headerSize + length;
+		s.written = s.pos;
+		nextOp++;
+		if (flusherWaiting) LockSupport.unpark(flusher);
+	}
+
+	/**
+	 * Seals the current segment and starts a new one, with room for at least a record of the given size
+	 */
+	private void roll(int recordSize) {
+		Segment full = current;
+		try {
+			current = new Segment(segmentPath(nextOp), nextOp, Math.max(segmentSize, recordSize + 8));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		unforced.add(current);
+		full.sealed = true;
+		if (flusher == null) {
+			// no flusher to close it
+			unforced.remove(full);
+			closeQuietly(full);
+		}
+	}
+
+	/**
+	 * Forces to the disk whatever has been appended and not yet forced
+	 */
+	public synchronized void force() {
+		for (Iterator<Segment> it = unforced.iterator(); it.hasNext(); ) {
+			Segment s = it.next();
+			boolean sealed = s.sealed; // before written, which is final once sealed
+			int written = s.written;
+			if (written > s.forced) {
+				s.map.force(s.forced, written - s.forced);
+				s.forced = written;
+				forces++;
+			}
+			if (!s.synced) {
+				syncDirectory();
+				s.synced = true;
+			}
+			if (sealed) {
+				it.remove();
+				closeQuietly(s);
+			}
+		}
+	}
+
+	/**
+	 * Forces the directory, so that new segment files are there after a crash too (where the platform allows)
+	 */
+	private void syncDirectory() {
+		try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+			d.force(true);
+		}
+		catch (IOException e) {
+			// not supported here
+		}
+	}
+
+	private void flushLoop() {
+		while (!closed) {
+			if (policy == FsyncPolicy.INTERVAL) {
+				LockSupport.parkNanos(this, intervalMillis * 1_000_000L);
+			}
+			else {
+				flusherWaiting = true;
+				if (!hasUnforced() && !closed) LockSupport.park(this);
+				flusherWaiting = false;
+			}
+			force();
+		}
+	}
+
+	private boolean hasUnforced() {
+		for (Segment s : unforced) {
+			if (s.written > s.forced || s.sealed) return true;
+		}
+		return false;
+	}
+
+	private static void closeQuietly(Segment s) {
+		try {
+			s.channel.close(); // the mapping stays valid until it is collected
+		}
+		catch (IOException e) {
+			// nothing more to do with it
+		}
+	}
+
+	/**
+	 * Forces everything appended and stops the flusher
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (flusher != null) {
+			LockSupport.unpark(flusher);
+			try {
+				flusher.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		current.sealed = true;
+		force();
+	}
+}
@@ -0,0 +1,130 @@
+import java.util.function.ObjIntConsumer;
+
+/**
+ * An immutable map from int keys to values; put and remove return a new map that shares all but the
+ * path to the changed key with the old one (a 32-way trie on the key's bits, 5 at a time),
+ * so any number of versions can be kept and read by any thread without locking.
+ *
+ * Keys are ordered as unsigned ints, and the trie is only as deep as the largest key needs:
+ * ids up to 1023 take two levels, up to 32767 three.
+ */
+public final class PersistentIntMap<V> {
+	private static final int bits = 5, width = 1 << bits, mask = width - 1;
+	private static final PersistentIntMap<Object> EMPTY = new PersistentIntMap<Object>(new Object[width], 0, 0);
+
+	private final Object[] root;	// children (Object[]) on inner levels, values on the bottom one
+	private final int shift;		// of the root level: keys below 1 << (shift + bits) fit
+	private final int size;			// number of keys
+
+	private PersistentIntMap(Object[] root, int shift, int size) {
+		this.root = root;
+		this.shift = shift;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentIntMap<V> empty() {
+		return (PersistentIntMap<V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * The value for key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		if (!fits(key, shift)) return null;
+		Object[] node = root;
+		for (int s = shift; s > 0; s -= bits) {
+			node = (Object[]) node[(key >>> s) & mask];
+			if (node == null) return null;
+		}
+		return (V) node[key & mask];
+	}
+
+	/**
+	 * The map with key mapped to value (which must not be null)
+	 */
+	public PersistentIntMap<V> put(int key, V value) {
+		Object[] r = root;
+		int s = shift;
+		while (!fits(key, s)) {
+			// deepen: the current trie becomes the first child of a new root
+			Object[] up = new Object[width];
+			if (size > 0) up[0] = r;
+			r = up;
+			s += bits;
+		}
+		boolean[] added = {false};
+		Object[] newRoot = put(r, s, key, value, added);
+		return new PersistentIntMap<V>(newRoot, s, added[0] ? size + 1 : size);
+	}
+
+	private static Object[] put(Object[] node, int s, int key, Object value, boolean[] added) {
+		Object[] copy = node.clone();
+		int i = (key >>> s) & mask;
+		if (s == 0) {
+			added[0] = copy[i] == null;
+			copy[i] = value;
+		}
+		else {
+			Object[] child = (Object[]) copy[i];
+			copy[i] = put(child != null ? child : new Object[width], s - bits, key, value, added);
+		}
+		return copy;
+	}
+
+	/**
+	 * The map without key (this same map if it had no such key)
+	 */
+	public PersistentIntMap<V> remove(int key) {
+		if (get(key) == null) return this;
+		if (size == 1) return empty();
+		return new PersistentIntMap<V>(remove(root, shift, key), shift, size - 1);
+	}
+
+	/**
+	 * The node without key, or null if that leaves it empty
+	 */
+	private static Object[] remove(Object[] node, int s, int key) {
+		Object[] copy = node.clone();
+		int i = (key >>> s) & mask;
+		copy[i] = s == 0 ? null : remove((Object[]) copy[i], s - bits, key);
+		for (Object o : copy) {
+			if (o != null) return copy;
+		}
+		return null;
+	}
+
+	/**
+	 * Calls visitor.accept(value, key) for every entry, in increasing order of key
+	 */
+	public void forEach(ObjIntConsumer<? super V> visitor) {
+		if (size > 0) forEach(root, shift, 0, visitor);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> void forEach(Object[] node, int s, int prefix, ObjIntConsumer<? super V> visitor) {
+		for (int i = 0; i < width; i++) {
+			Object o = node[i];
+			if (o == null) continue;
+			int key = prefix | (i << s);
+			if (s == 0) visitor.accept((V) o, key);
+			else forEach((Object[]) o, s - bits, key, visitor);
+		}
+	}
+
+	/**
+	 * Whether a trie whose root is at shift s has room for key
+	 */
+	private static boolean fits(int key, int s) {
+		return s + bits >= 32 || (key >>> (s + bits)) == 0;
+	}
+}
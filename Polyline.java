@@ -1,51 +1,162 @@
 import java.awt.Color;
 import java.awt.Graphics;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A multi-segment Shape, with straight lines connecting "joint" points -- (x1,y1) to (x2,y2) to (x3,y3) ...
  *
+ * The joints are kept in plain int arrays (not a Segment object per mouse sample), relative to an offset
+ * that moveBy adjusts, and the whole line is drawn with drawPolyline.
+ * A copy shares the arrays (the joints, the breaks between runs and the bounds of the finished chunks) with the line
+ * it was copied from, so copying is cheap however long the line; only the chunk still growing is its own.
+ *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Spring 2016
  * @author CBK, updated Fall 2016
  * @author Aimen Abdulaziz, Dartmouth College, Winter 2022, implemented Polyline
  */
 public class Polyline implements Shape {
-	// TODO: YOUR CODE HERE
+	private static final int chunkSize = 32;		// segments per chunk of sub-bounds
+
 	private Color color;
-	private List<Segment> segments = new ArrayList<Segment>();
+	private int[] xs = new int[16], ys = new int[16];	// joints, relative to (offsetX, offsetY)
+	private int n = 0;									// joints used
+	private int[] breaks = null;						// bits of the joints that start a new run (not joined to the one before), if any
+	private int offsetX = 0, offsetY = 0;				// how far the whole line has been moved
+	private AtomicInteger written = new AtomicInteger();	// joints written into the arrays, by any copy sharing them
+	private int[] chunkBounds = new int[4];				// relative bounds (x1, y1, x2, y2) of segments 0-31, 32-63, ... once finished
+	private int tailX1, tailY1, tailX2, tailY2;			// ... and of the chunk still growing
+	private int minX, minY, maxX, maxY;					// relative bounds of the whole line
 
 	/**
 	 * Initial 0-length polyline with only one segment
 	 */
 	public Polyline(int x1, int y1, Color color) {
-		Segment s = new Segment(x1, y1, color);
-		segments.add(s);
-		this.color = color;
+		this(x1, y1, x1, y1, color);
 	}
 
 	/**
 	 * Complete line with two segments
 	 */
 	public Polyline(int x1, int y1, int x2, int y2, Color color) {
-		Segment s = new Segment(x1, y1, x2, y2, color);
-		segments.add(s);
 		this.color = color;
+		append(x1, y1, false);
+		append(x2, y2, false);
+	}
+
+	/**
+	 * A copy of another line, sharing its arrays rather than copying them: whichever of the lines sharing them
+	 * is first to add a joint after the last one they have in common adds it in place (where the others never
+	 * look), and any other first takes arrays of its own
+	 */
+	private Polyline(Polyline other) {
+		color = other.color;
+		xs = other.xs;
+		ys = other.ys;
+		written = other.written;
+		n = other.n;
+		breaks = other.breaks;
+		offsetX = other.offsetX;
+		offsetY = other.offsetY;
+		chunkBounds = other.chunkBounds;
+		tailX1 = other.tailX1; tailY1 = other.tailY1; tailX2 = other.tailX2; tailY2 = other.tailY2;
+		minX = other.minX; minY = other.minY; maxX = other.maxX; maxY = other.maxY;
+	}
+
+	/**
+	 * Extends the line from its last joint to (x,y)
+	 */
+	public void addPoint(int x, int y) {
+		append(x - offsetX, y - offsetY, false);
 	}
 
 	/**
-	 * Adds segment to the freehand polyline segments list
-	 * @param segment segment object
+	 * Adds the segment (x1,y1)-(x2,y2); normally it starts where the line ends,
+	 * but if not it is kept as a separate piece of the same line
 	 */
-	public void addSegment(Segment segment){
-		segments.add(segment);
+	public void addSegment(int x1, int y1, int x2, int y2) {
+		x1 -= offsetX; y1 -= offsetY;
+		if (xs[n-1] != x1 || ys[n-1] != y1) append(x1, y1, true);
+		append(x2 - offsetX, y2 - offsetY, false);
+	}
+
+	/**
+	 * Number of joints in the line
+	 */
+	public int getPointCount() {
+		return n;
+	}
+
+	/**
+	 * Adds a joint (in relative coordinates), extending the bounds by the segment it ends
+	 * @param newRun whether it starts a separate piece of the line, rather than being joined to the last joint
+	 */
+	private void append(int x, int y, boolean newRun) {
+		if (n == xs.length || !written.compareAndSet(n, n + 1)) {
+			// full, or a line sharing the arrays has added joints after ours: take arrays of our own
+			int capacity = n == xs.length ? n + (n >> 1) : xs.length;
+			xs = Arrays.copyOf(xs, capacity);
+			ys = Arrays.copyOf(ys, capacity);
+			chunkBounds = chunkBounds.clone();
+			if (breaks != null) {
+				// without the runs another line has started past ours
+				breaks = breaks.clone();
+				int word = n >> 5;
+				if (word < breaks.length) {
+					breaks[word] &= (1 << n) - 1;
+					Arrays.fill(breaks, word + 1, breaks.length, 0);
+				}
+			}
+			written = new AtomicInteger(n + 1);
+		}
+		// everything written from here on is past what any line sharing the arrays looks at
+		if (newRun) {
+			int word = n >> 5;
+			if (breaks == null) breaks = new int[Math.max(word + 1, xs.length >> 5)];
+			else if (word >= breaks.length) breaks = Arrays.copyOf(breaks, Math.max(word + 1, breaks.length * 2));
+			breaks[word] |= 1 << n;
+		}
+		xs[n] = x;
+		ys[n] = y;
+		n++;
+
+		// the segment ending here (or just the point, for the first joint of a run), with the pick tolerance
+		int seg = n - 1;
+		int px = startsRun(seg) ? x : xs[seg-1], py = startsRun(seg) ? y : ys[seg-1];
+		int x1 = Math.min(x, px) - 3, y1 = Math.min(y, py) - 3, x2 = Math.max(x, px) + 3, y2 = Math.max(y, py) + 3;
+		if (seg % chunkSize == 0) {
+			// first segment of a new chunk: the one before is finished, and its bounds go with the others
+			if (seg > 0) {
+				int c = (seg / chunkSize - 1) * 4;
+				if (c == chunkBounds.length) chunkBounds = Arrays.copyOf(chunkBounds, c * 2);
+				chunkBounds[c] = tailX1; chunkBounds[c+1] = tailY1; chunkBounds[c+2] = tailX2; chunkBounds[c+3] = tailY2;
+			}
+			tailX1 = x1; tailY1 = y1; tailX2 = x2; tailY2 = y2;
+		}
+		else {
+			tailX1 = Math.min(tailX1, x1); tailY1 = Math.min(tailY1, y1);
+			tailX2 = Math.max(tailX2, x2); tailY2 = Math.max(tailY2, y2);
+		}
+		if (seg == 0) {
+			minX = x1; minY = y1; maxX = x2; maxY = y2;
+		}
+		else {
+			minX = Math.min(minX, x1); minY = Math.min(minY, y1);
+			maxX = Math.max(maxX, x2); maxY = Math.max(maxY, y2);
+		}
+	}
+
+	/**
+	 * Whether joint i is not joined to the one before it
+	 */
+	private boolean startsRun(int i) {
+		return i == 0 || (breaks != null && (i >> 5) < breaks.length && (breaks[i >> 5] & 1 << i) != 0);
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
-		for (Segment seg : segments){
-			seg.moveBy(dx, dy);
-		}
+		offsetX += dx;
+		offsetY += dy;
 	}
 
 	@Override
@@ -55,35 +166,73 @@ public class Polyline implements Shape {
 
 	@Override
 	public void setColor(Color color) {
-		for (Segment seg : segments) {
-			seg.setColor(color);
-		}
+		this.color = color;
 	}
 
 	@Override
 	public boolean contains(int x, int y) {
-		for (Segment seg : segments){
-			if (seg.contains(x, y)) {
-				return true;
+		// work in the line's own coordinates rather than moving every joint
+		x -= offsetX; y -= offsetY;
+		if (x < minX || x > maxX || y < minY || y > maxY) return false;
+		// only look closely at the chunks of the line near the point
+		int last = (n - 1) / chunkSize;
+		for (int chunk = 0; chunk <= last; chunk++) {
+			int c = chunk * 4;
+			if (chunk < last ? x < chunkBounds[c] || y < chunkBounds[c+1] || x > chunkBounds[c+2] || y > chunkBounds[c+3]
+					: x < tailX1 || y < tailY1 || x > tailX2 || y > tailY2) continue;
+			int end = Math.min(n, (chunk + 1) * chunkSize);
+			for (int i = Math.max(1, chunk * chunkSize); i < end; i++) {
+				if (startsRun(i)) {
+					if (Segment.dist2(x, y, xs[i], ys[i]) <= 3*3) return true;
+				}
+				else if (Segment.pointToSegmentDistance2(x, y, xs[i-1], ys[i-1], xs[i], ys[i]) <= 3*3) {
+					return true;
+				}
 			}
 		}
-		// return false after checking all the segments
+		// return false after checking all the nearby segments
 		return false;
 	}
 
+	@Override
+	public Bounds getBounds() {
+		return new Bounds(minX + offsetX, minY + offsetY, maxX + offsetX, maxY + offsetY);
+	}
+
 	@Override
 	public void draw(Graphics g) {
-		for (Segment seg : segments) {
-			seg.draw(g);
+		g.setColor(color);
+		g.translate(offsetX, offsetY);
+		if (breaks == null) {
+			g.drawPolyline(xs, ys, n);
 		}
+		else {
+			// one call per connected run
+			int start = 0;
+			for (int i = 1; i <= n; i++) {
+				if (i == n || startsRun(i)) {
+					g.drawPolyline(Arrays.copyOfRange(xs, start, i), Arrays.copyOfRange(ys, start, i), i - start);
+					start = i;
+				}
+			}
+		}
+		g.translate(-offsetX, -offsetY);
+	}
+
+	@Override
+	public Shape copy() {
+		return new Polyline(this);
 	}
 
 	@Override
 	public String toString() {
 		StringBuilder result = new StringBuilder("polyline ");
-		for (Segment seg : segments){
-			result.append(seg.toString()).append(" ");
+		int rgb = color.getRGB();
+		for (int i = 1; i < n; i++) {
+			if (startsRun(i)) continue;
+			result.append("segment ").append(xs[i-1] + offsetX).append(' ').append(ys[i-1] + offsetY).append(' ')
+					.append(xs[i] + offsetX).append(' ').append(ys[i] + offsetY).append(' ').append(rgb).append(' ');
 		}
-		return result.toString() + color.getRGB();
+		return result.append(rgb).toString();
 	}
-}
\ No newline at end of file
+}
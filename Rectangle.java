@@ -14,6 +14,7 @@ public class Rectangle implements Shape {
     // TODO: YOUR CODE HERE
     private int x1, y1, x2, y2;		// upper left and lower right
     private Color color;
+    private Bounds bounds;			// kept up to date with the corners
 
     /**
      * An "empty" rectangle, with only one point set so far
@@ -22,6 +23,7 @@ public class Rectangle implements Shape {
         this.x1 = x1; this.x2 = x1;
         this.y1 = y1; this.y2 = y1;
         this.color = color;
+        bounds = new Bounds(x1, y1, x1, y1);
     }
 
     /**
@@ -41,12 +43,14 @@ public class Rectangle implements Shape {
         this.y1 = Math.min(y1, y2);
         this.x2 = Math.max(x1, x2);
         this.y2 = Math.max(y1, y2);
+        bounds = new Bounds(this.x1, this.y1, this.x2, this.y2);
     }
 
     @Override
     public void moveBy(int dx, int dy) {
         x1 += dx; y1 += dy;
         x2 += dx; y2 += dy;
+        bounds = bounds.translate(dx, dy);
     }
 
     @Override
@@ -61,7 +65,12 @@ public class Rectangle implements Shape {
 
     @Override
     public boolean contains(int x, int y) {
-        return (x1 <= x && x <= x2) && (y1 <= y && y <= y2);
+        return bounds.contains(x, y); // a rectangle is its own bounds
+    }
+
+    @Override
+    public Bounds getBounds() {
+        return bounds;
     }
 
     @Override
@@ -74,6 +83,11 @@ public class Rectangle implements Shape {
         g.fillRect(x1, y1, x2-x1, y2-y1);
     }
 
+    @Override
+    public Shape copy() {
+        return new Rectangle(x1, y1, x2, y2, color);
+    }
+
     public String toString() {
         return "rectangle "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
     }
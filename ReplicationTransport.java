@@ -0,0 +1,49 @@
+/**
+ * How the nodes of a clustered SketchServer pass requests to one another. Each board has one leader node, which puts
+ * the board's requests into their one order: the other nodes forward their clients' requests to it, and it replicates
+ * each request it applies to all of them, in that order, so every client on every node sees the same sequence.
+ *
+ * Messages from one node to another must arrive in the order they were sent.
+ */
+public interface ReplicationTransport {
+	/**
+	 * What a node does with the messages that reach it (on the transport's thread, one at a time)
+	 */
+	public interface Receiver {
+		/**
+		 * On a board's leader: a request from a client connected to another node,
+		 * tagged "@client:seq" if the client numbered it
+		 */
+		public void forwarded(String board, String request);
+
+		/**
+		 * On every other node: a request the board's leader has applied as its version'th, tagged as above
+		 */
+		public void replicated(String board, long version, String request);
+	}
+
+	/**
+	 * This node's number, from 0 up to getNodeCount() - 1
+	 */
+	public int getNodeId();
+
+	/**
+	 * How many nodes there are in the cluster
+	 */
+	public int getNodeCount();
+
+	/**
+	 * Where the messages to this node go
+	 */
+	public void setReceiver(Receiver receiver);
+
+	/**
+	 * Passes a request from a client of this node on to the board's leader
+	 */
+	public void forward(int leader, String board, String request);
+
+	/**
+	 * Passes a request this node, as the board's leader, has applied on to every other node
+	 */
+	public void replicate(String board, long version, String request);
+}
@@ -0,0 +1,49 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A log for things that happen on every message, such as each request received: only about one in every n is kept,
+ * and a thread of its own prints those, so the threads logging never wait on the console.
+ * Lines kept while the printer is a whole queue behind are dropped (and counted) rather than waited for.
+ */
+public class SampledLog {
+	private final int every;							// one line in this many is kept (0 for none)
+	private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(1024);
+	private final LongAdder dropped = new LongAdder();	// lines kept but not printed, for want of room
+
+	/**
+	 * @param every keep one line in this many, chosen at random (1 for all of them, 0 for none)
+	 */
+	public SampledLog(int every) {
+		this.every = every;
+		if (every <= 0) return;
+		Thread printer = new Thread(this::print, "sampled-log");
+		printer.setDaemon(true);
+		printer.start();
+	}
+
+	/**
+	 * Logs the line, if it is one of those sampled; safe to call from any thread, and never waits
+	 */
+	public void sample(String line) {
+		if (every <= 0) return;
+		if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) return;
+		if (!queue.offer(line)) dropped.increment();
+	}
+
+	private void print() {
+		try {
+			while (true) {
+				String line = queue.take();
+				long lost = dropped.sumThenReset();
+				if (lost > 0) System.out.println("(" + lost + " sampled lines dropped)");
+				System.out.println(line);
+			}
+		}
+		catch (InterruptedException e) {
+			// shutting down
+		}
+	}
+}
@@ -11,6 +11,7 @@ import java.awt.Graphics;
 public class Segment implements Shape {
 	private int x1, y1, x2, y2;		// two endpoints
 	private Color color;
+	private Bounds bounds;			// kept up to date with the endpoints
 
 	/**
 	 * Initial 0-length segment at a point
@@ -19,6 +20,7 @@ public class Segment implements Shape {
 		this.x1 = x1; this.x2 = x1;
 		this.y1 = y1; this.y2 = y1;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -28,6 +30,7 @@ public class Segment implements Shape {
 		this.x1 = x1; this.y1 = y1;
 		this.x2 = x2; this.y2 = y2;
 		this.color = color;
+		updateBounds();
 	}
 
 	/**
@@ -35,6 +38,7 @@ public class Segment implements Shape {
 	 */
 	public void setStart(int x1, int y1) {
 		this.x1 = x1; this.y1 = y1;
+		updateBounds();
 	}
 
 	/**
@@ -42,12 +46,22 @@ public class Segment implements Shape {
 	 */
 	public void setEnd(int x2, int y2) {
 		this.x2 = x2; this.y2 = y2;
+		updateBounds();
+	}
+
+	/**
+	 * Recomputes the bounds from the endpoints
+	 */
+	private void updateBounds() {
+		// contains() accepts points up to 3 away from the line
+		bounds = new Bounds(x1, y1, x2, y2).grow(3);
 	}
 
 	@Override
 	public void moveBy(int dx, int dy) {
 		x1 += dx; y1 += dy;
 		x2 += dx; y2 += dy;
+		bounds = bounds.translate(dx, dy);
 	}
 
 	@Override
@@ -62,7 +76,8 @@ public class Segment implements Shape {
 
 	@Override
 	public boolean contains(int x, int y) {
-		return pointToSegmentDistance(x, y, x1, y1, x2, y2) <= 3;
+		if (!bounds.contains(x, y)) return false; // cheap rejection of almost every point
+		return pointToSegmentDistance2(x, y, x1, y1, x2, y2) <= 3*3;
 	}
 
 	/**
@@ -70,15 +85,22 @@ public class Segment implements Shape {
 	 * http://stackoverflow.com/questions/849211/shortest-distance-between-a-point-and-a-line-segment
 	 */
 	public static double pointToSegmentDistance(int x, int y, int x1, int y1, int x2, int y2) {
+		return Math.sqrt(pointToSegmentDistance2(x, y, x1, y1, x2, y2));
+	}
+
+	/**
+	 * The same distance, squared (so there is no need for a square root just to compare it)
+	 */
+	public static double pointToSegmentDistance2(int x, int y, int x1, int y1, int x2, int y2) {
 		double l2 = dist2(x1, y1, x2, y2);
-		if (l2 == 0) return Math.sqrt(dist2(x, y, x1, y1)); // segment is a point
+		if (l2 == 0) return dist2(x, y, x1, y1); // segment is a point
 		// Consider the line extending the segment, parameterized as <x1,y1> + t*(<x2,y2> - <x1,y1>).
 		// We find projection of point <x,y> onto the line.
 		// It falls where t = [(<x,y>-<x1,y1>) . (<x2,y2>-<x1,y1>)] / |<x2,y2>-<x1,y1>|^2
 		double t = ((x-x1)*(x2-x1) + (y-y1)*(y2-y1)) / l2;
 		// We clamp t from [0,1] to handle points outside the segment.
 		t = Math.max(0, Math.min(1, t));
-		return Math.sqrt(dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1)));
+		return dist2(x, y, x1+t*(x2-x1), y1+t*(y2-y1));
 	}
 
 	/**
@@ -88,12 +110,22 @@ public class Segment implements Shape {
 		return (x2-x1)*(x2-x1) + (y2-y1)*(y2-y1);
 	}
 
+	@Override
+	public Bounds getBounds() {
+		return bounds;
+	}
+
 	@Override
 	public void draw(Graphics g) {
 		g.setColor(color);
 		g.drawLine(x1, y1, x2, y2);
 	}
 
+	@Override
+	public Shape copy() {
+		return new Segment(x1, y1, x2, y2, color);
+	}
+
 	@Override
 	public String toString() {
 		return "segment "+x1+" "+y1+" "+x2+" "+y2+" "+color.getRGB();
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles communication between the server and one client without a thread of its own;
+ * driven by the SelectorLoop that owns its channel.
+ * Speaks the same protocol as SketchServerCommunicator (lines, or binary frames if the client asks).
+ */
+public class SelectorCommunicator implements ClientConnection {
+	private SocketChannel channel;							// to talk with client
+	private SelectionKey key;								// registration with the loop's selector
+	private SelectorLoop loop;								// the loop driving this channel
+	private SketchServer server;							// handling communication for
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);		// raw bytes from the client
+	private byte[] line = new byte[256];							// partial line (or frame) assembled so far
+	private int lineLength = 0;										// bytes used in line
+	private BinaryCodec codec = null;								// once the client has asked for frames: reads them
+	private int frameLength = -1;									// length of the frame being assembled, once its prefix is in
+
+	private ConcurrentLinkedQueue<Message> outbound = new ConcurrentLinkedQueue<Message>();	// to client
+	private AtomicInteger queued = new AtomicInteger(0);				// messages in outbound, and the one being written
+	private ByteBuffer writing = null;									// message partly written (loop thread only)
+	private volatile boolean binary = false;							// whether the client has asked for binary frames
+	private boolean framing = false;									// whether the answer has been written (loop thread only)
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);	// whether the loop has been asked to write
+	private AtomicBoolean closed = new AtomicBoolean(false);			// set once the client has gone (or been dropped)
+
+	public SelectorCommunicator(SocketChannel channel, SelectorLoop loop, SketchServer server) {
+		this.channel = channel;
+		this.loop = loop;
+		this.server = server;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Tells the new client the current state of the world and starts including it in broadcasts
+	 */
+	public void join() {
+		System.out.println("someone connected");
+		server.join(this);
+	}
+
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(channel.socket().getRemoteSocketAddress());
+	}
+
+	/**
+	 * Queues a message for the client; safe to call from any thread, and never waits on the client.
+	 * If the client has fallen a whole queue behind, the server's overflow policy decides what happens.
+	 */
+	public void send(Message msg) {
+		if (closed.get()) return;
+		if (queued.incrementAndGet() > server.getQueueCapacity()) {
+			switch (server.getOverflowPolicy()) {
+				case DISCONNECT -> {
+					System.out.println("dropping a client that fell " + queued.get() + " messages behind");
+					close();
+					return;
+				}
+				case RESYNC -> {
+					// everything queued is superseded by the current state of the world
+					// (a message the loop is partway through writing is finished first, so lines stay whole, and counts
+					// until then; the rest are counted off as they are taken, so the count never misses a write)
+					while (outbound.poll() != null) queued.decrementAndGet();
+					msg = server.resyncMessage(this);
+				}
+			}
+		}
+		outbound.add(msg);
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Reads what the client has sent, handling each complete line, or frame once it has asked for them
+	 * (called on the loop thread).
+	 * Takes at most one buffer-full per call, so one busy client can't starve the rest of the loop.
+	 */
+	public void read() {
+		try {
+			int n = channel.read(readBuffer);
+			if (n < 0) { // client hung up
+				close();
+				return;
+			}
+			readBuffer.flip();
+			while (readBuffer.hasRemaining()) {
+				byte b = readBuffer.get();
+				if (codec != null) {
+					readFrameByte(b);
+				}
+				else if (b == '\n') {
+					long start = System.nanoTime();
+					int end = lineLength;
+					if (end > 0 && line[end-1] == '\r') end--;
+					String request = new String(line, 0, end, StandardCharsets.UTF_8);
+					lineLength = 0;
+					if (BinaryCodec.isHello(request)) {
+						codec = new BinaryCodec();
+						binary = true;
+						continue;
+					}
+					server.getMetrics().decoded(System.nanoTime() - start);
+					server.receive(this, request);
+				}
+				else {
+					append(b);
+				}
+			}
+			readBuffer.clear();
+		}
+		catch (IOException | IllegalArgumentException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Adds a byte to the line or frame being assembled
+	 */
+	private void append(byte b) {
+		if (lineLength == line.length) {
+			line = Arrays.copyOf(line, line.length * 2);
+		}
+		line[lineLength++] = b;
+	}
+
+	/**
+	 * Adds a byte to the frame being assembled: first its length prefix, then that many bytes,
+	 * whereupon the frame is handled
+	 */
+	private void readFrameByte(byte b) throws IOException {
+		if (frameLength < 0) {
+			// still in the length prefix
+			if (lineLength == 4 && b < 0) throw new IOException("bad frame length");
+			line[lineLength++] = b;
+			if (b < 0) return;
+			frameLength = 0;
+			for (int i = lineLength - 1; i >= 0; i--) frameLength = frameLength << 7 | (line[i] & 0x7f);
+			if (frameLength < 0 || frameLength > BinaryCodec.maxFrame) throw new IOException("frame too long: " + frameLength);
+			lineLength = 0;
+		}
+		else {
+			append(b);
+		}
+		if (lineLength == frameLength) {
+			long start = System.nanoTime();
+			String request = codec.toText(line, 0, frameLength);
+			server.getMetrics().decoded(System.nanoTime() - start);
+			lineLength = 0;
+			frameLength = -1;
+			server.receive(this, request);
+		}
+	}
+
+	/**
+	 * Writes as much of the outbound queue as the socket will take (called on the loop thread);
+	 * whatever is left waits for the channel to become writable again
+	 */
+	public void flush() {
+		if (!key.isValid()) return;
+		try {
+			while (writing != null || (writing = nextBuffer()) != null) {
+				channel.write(writing);
+				if (writing.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				writing = null;
+				queued.decrementAndGet();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			flushScheduled.set(false);
+			// a send may have slipped in after the queue looked empty
+			if (!outbound.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+				loop.execute(this::flush);
+			}
+		}
+		catch (IOException e) {
+			close();
+		}
+	}
+
+	/**
+	 * The next queued message as bytes to write, encoded for the client (null if none);
+	 * once the client has asked for frames, the first one is preceded by the answer
+	 */
+	private ByteBuffer nextBuffer() {
+		Message msg = outbound.poll();
+		if (msg == null) return null;
+		if (!framing && binary) {
+			framing = true;
+			byte[] frames = msg.frames();
+			return ByteBuffer.allocate(BinaryCodec.HELLO_LINE.length + frames.length).put(BinaryCodec.HELLO_LINE).put(frames).flip();
+		}
+		return ByteBuffer.wrap(framing ? msg.frames() : msg.bytes()); // a view of its own, over the shared bytes
+	}
+
+	/**
+	 * Clean up -- note that also remove self from server's list, so it doesn't broadcast here
+	 * (safe from any thread; the loop notices the cancelled key)
+	 */
+	private void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		server.removeCommunicator(this);
+		outbound.clear();
+		key.cancel();
+		try {
+			channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+import java.io.IOException;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event-loop thread for the non-blocking SketchServer mode: one Selector multiplexing
+ * many editor channels (and, on the first loop, the listening channel)
+ */
+public class SelectorLoop extends Thread {
+	private Selector selector;										// readiness of all channels owned by this loop
+	private ConcurrentLinkedQueue<Runnable> tasks;					// work handed in from other threads
+	private SketchServer server;									// handling communication for
+	private SelectorLoop[] loops;									// all loops, for spreading accepted channels
+	private int nextLoop = 0;										// round-robin position in loops
+
+	public SelectorLoop(SketchServer server, SelectorLoop[] loops, int index) throws IOException {
+		super("selector-" + index);
+		this.server = server;
+		this.loops = loops;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	/**
+	 * Runs the task on this loop's thread, waking the selector up to do so
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Starts accepting editors on the listening channel (from this loop)
+	 */
+	public void listen(ServerSocketChannel listen) {
+		execute(() -> {
+			try {
+				listen.configureBlocking(false);
+				listen.register(selector, SelectionKey.OP_ACCEPT);
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Takes over a freshly accepted channel
+	 */
+	public void adopt(SocketChannel channel) {
+		execute(() -> {
+			try {
+				channel.configureBlocking(false);
+				SelectorCommunicator comm = new SelectorCommunicator(channel, this, server);
+				comm.setKey(channel.register(selector, SelectionKey.OP_READ, comm));
+				comm.join();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * The usual select loop: run handed-in tasks, then service every channel that is ready
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+				while (ready.hasNext()) {
+					SelectionKey key = ready.next();
+					ready.remove();
+					if (!key.isValid()) continue;
+
+					if (key.isAcceptable()) {
+						accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					SelectorCommunicator comm = (SelectorCommunicator) key.attachment();
+					if (key.isReadable()) comm.read();
+					if (key.isValid() && key.isWritable()) comm.flush();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Accepts every pending editor, handing them to the loops in turn
+	 */
+	private void accept(ServerSocketChannel listen) throws IOException {
+		SocketChannel channel;
+		while ((channel = listen.accept()) != null) {
+			loops[nextLoop].adopt(channel);
+			nextLoop = (nextLoop + 1) % loops.length;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts everything that changes the server's state into one global order, disruptor-style:
+ * any number of threads publish events into a preallocated ring, and a single consumer
+ * handles them strictly in sequence, so applying an op and broadcasting it happen together
+ * and nothing else has to lock the sketch or the list of clients.
+ *
+ * The consumer is not a thread of its own; it is run on the given executor whenever there is
+ * something to handle, and never more than once at a time. It handles at most a batch of events
+ * per run before queueing itself again, so sequencers sharing an executor take turns.
+ */
+public class Sequencer {
+	/**
+	 * What an event asks the consumer to do
+	 */
+	public enum Kind {
+		OP,			// apply a request from a client and pass it on
+		JOIN,		// tell a new client the state of the world and start including it
+		LEAVE,		// stop including a client (which is moving elsewhere), then run the event's next
+		TICK		// end of a frame: broadcast whatever has been held back
+	}
+
+	/**
+	 * One slot of the ring; reused, so handlers must not hang on to it
+	 */
+	public static class Event {
+		public long sequence;				// position in the global order
+		public Kind kind;
+		public ClientConnection source;		// client the event came from (if any)
+		public String line;					// request, for OP (for JOIN, a line to send the client first, if any)
+		public Runnable next;				// for LEAVE: what to do once the client is out
+		public long publishedAt;			// System.nanoTime() when it was published
+	}
+
+	/**
+	 * Handles events in order (always on one thread at a time)
+	 */
+	public interface Handler {
+		public void onEvent(Event event);
+	}
+
+	private Event[] ring;							// preallocated slots
+	private int mask;								// ring.length - 1, for cheap wrapping
+	private AtomicLongArray published;				// sequence most recently published in each slot
+	private AtomicLong claimed = new AtomicLong(-1);	// last sequence handed to a producer
+	private volatile long consumed = -1;			// last sequence handled
+	private AtomicBoolean scheduled = new AtomicBoolean(false);	// whether the consumer is queued or running
+	private Handler handler;
+	private Executor executor;
+	private static final int maxBatch = 256;		// events handled per run of the consumer
+
+	/**
+	 * @param capacity slots in the ring (rounded up to a power of two)
+	 * @param handler consumer of the events
+	 * @param executor where the consumer runs
+	 */
+	public Sequencer(int capacity, Handler handler, Executor executor) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		ring = new Event[size];
+		published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Event();
+			published.set(i, -1);
+		}
+		mask = size - 1;
+		this.handler = handler;
+		this.executor = executor;
+	}
+
+	/**
+	 * Last sequence number that has been handled
+	 */
+	public long getSequence() {
+		return consumed;
+	}
+
+	/**
+	 * Adds an event to the end of the global order; safe to call from any thread.
+	 * If the consumer is a whole ring behind, waits for it (pushing back on the client).
+	 * @return the event's sequence number
+	 */
+	public long publish(Kind kind, ClientConnection source, String line) {
+		return publish(kind, source, line, null);
+	}
+
+	/**
+	 * Adds an event to the end of the global order, with something to run after handling it
+	 */
+	public long publish(Kind kind, ClientConnection source, String line, Runnable next) {
+		long seq = claimed.incrementAndGet();
+		while (seq - ring.length > consumed) {
+			LockSupport.parkNanos(1000);
+		}
+		Event event = ring[(int) seq & mask];
+		event.sequence = seq;
+		event.kind = kind;
+		event.source = source;
+		event.line = line;
+		event.next = next;
+		event.publishedAt = System.nanoTime();
+		published.set((int) seq & mask, seq);
+		schedule();
+		return seq;
+	}
+
+	/**
+	 * Gets the consumer going, unless it already is
+	 */
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			executor.execute(this::drain);
+		}
+	}
+
+	/**
+	 * The consumer: handles every event published so far, in order
+	 */
+	private void drain() {
+		long next = consumed + 1;
+		long last = next + maxBatch;
+		while (next < last && published.get((int) next & mask) == next) {
+			Event event = ring[(int) next & mask];
+			try {
+				handler.onEvent(event);
+			}
+			catch (RuntimeException e) {
+				// a malformed request must not stall everyone behind it
+				e.printStackTrace();
+			}
+			event.source = null;
+			event.line = null;
+			event.next = null;
+			consumed = next++;
+		}
+		scheduled.set(false);
+		// the batch ran out, or an event may have been published after the loop looked
+		if (published.get((int) next & mask) == next) schedule();
+	}
+}
@@ -0,0 +1,160 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and timings for one SketchServer, cheap enough to keep on every request:
+ * counts are striped adders and timings go into LatencyHistograms (an atomic increment each).
+ * Sizes (boards, clients, shapes, queue depths) are only worked out when asked for.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private final SketchServer server;
+	private final LongAdder adds = new LongAdder(), moves = new LongAdder(), recolors = new LongAdder(),
+			deletes = new LongAdder(), strokes = new LongAdder(), others = new LongAdder();
+	private final LatencyHistogram decode = new LatencyHistogram();		// wire to request (on the connections' threads)
+	private final LatencyHistogram apply = new LatencyHistogram();		// request to sketch (on the boards' workers)
+	private final LatencyHistogram broadcast = new LatencyHistogram();	// message to every client's queue
+
+	public ServerMetrics(SketchServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Counts a request applied, by its first word, and how long applying it took
+	 */
+	public void applied(String request, long nanos) {
+		apply.record(nanos);
+		switch (request.isEmpty() ? ' ' : request.charAt(0)) {
+			case 'a' -> (request.startsWith("add") ? adds : strokes).increment(); // "add" or "append"
+			case 'm' -> moves.increment();
+			case 'r' -> recolors.increment();
+			case 'd' -> deletes.increment();
+			case 's' -> strokes.increment();
+			default -> others.increment();
+		}
+	}
+
+	public void decoded(long nanos) {
+		decode.record(nanos);
+	}
+
+	public void broadcast(long nanos) {
+		broadcast.record(nanos);
+	}
+
+	public long getAdds() {
+		return adds.sum();
+	}
+
+	public long getMoves() {
+		return moves.sum();
+	}
+
+	public long getRecolors() {
+		return recolors.sum();
+	}
+
+	public long getDeletes() {
+		return deletes.sum();
+	}
+
+	public long getStrokes() {
+		return strokes.sum();
+	}
+
+	public long getOtherRequests() {
+		return others.sum();
+	}
+
+	public long getDecodeP50Nanos() {
+		return decode.percentile(0.5);
+	}
+
+	public long getDecodeP99Nanos() {
+		return decode.percentile(0.99);
+	}
+
+	public long getDecodeP999Nanos() {
+		return decode.percentile(0.999);
+	}
+
+	public long getApplyP50Nanos() {
+		return apply.percentile(0.5);
+	}
+
+	public long getApplyP99Nanos() {
+		return apply.percentile(0.99);
+	}
+
+	public long getApplyP999Nanos() {
+		return apply.percentile(0.999);
+	}
+
+	public long getBroadcastP50Nanos() {
+		return broadcast.percentile(0.5);
+	}
+
+	public long getBroadcastP99Nanos() {
+		return broadcast.percentile(0.99);
+	}
+
+	public long getBroadcastP999Nanos() {
+		return broadcast.percentile(0.999);
+	}
+
+	public int getBoards() {
+		return server.getBoards().size();
+	}
+
+	public int getClients() {
+		return server.getClients().size();
+	}
+
+	public long getShapes() {
+		long n = 0;
+		for (Board board : server.getBoards()) n += board.getSketch().snapshot().size();
+		return n;
+	}
+
+	public long getSegments() {
+		long[] n = {0};
+		for (Board board : server.getBoards()) {
+			board.getSketch().snapshot().forEach((shape, id) -> {
+				if (shape instanceof Polyline p) n[0] += Math.max(0, p.getPointCount() - 1);
+				else if (shape instanceof Segment) n[0]++;
+			});
+		}
+		return n[0];
+	}
+
+	public int getMaxQueueDepth() {
+		int max = 0;
+		for (ClientConnection comm : server.getClients()) max = Math.max(max, comm.getQueueDepth());
+		return max;
+	}
+
+	public long getQueuedMessages() {
+		long n = 0;
+		for (ClientConnection comm : server.getClients()) n += comm.getQueueDepth();
+		return n;
+	}
+
+	public String dump() {
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("requests: %d adds, %d moves, %d recolors, %d deletes, %d strokes, %d other%n",
+				getAdds(), getMoves(), getRecolors(), getDeletes(), getStrokes(), getOtherRequests()));
+		line(out, "decode", decode);
+		line(out, "apply", apply);
+		line(out, "broadcast", broadcast);
+		out.append(String.format("%d boards, %d clients, %d shapes, %d segments%n",
+				getBoards(), getClients(), getShapes(), getSegments()));
+		out.append(String.format("queued: %d messages, at most %d for one client%n", getQueuedMessages(), getMaxQueueDepth()));
+		for (ClientConnection comm : server.getClients()) {
+			out.append(String.format("  %s: %d queued%n", comm, comm.getQueueDepth()));
+		}
+		return out.toString();
+	}
+
+	private static void line(StringBuilder out, String name, LatencyHistogram h) {
+		out.append(String.format("%s: %d timed, p50 %d ns, p99 %d ns, p999 %d ns, max %d ns%n", name, h.getCount(),
+				h.percentile(0.5), h.percentile(0.99), h.percentile(0.999), h.getMax()));
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * What a SketchServer's ServerMetrics shows over JMX (as "sketch:type=ServerMetrics,node=n")
+ */
+public interface ServerMetricsMBean {
+	// requests applied, by kind
+	public long getAdds();
+	public long getMoves();
+	public long getRecolors();
+	public long getDeletes();
+	public long getStrokes();		// "stroke" and "append"
+	public long getOtherRequests();
+
+	// time to turn what a client sent into a request, to apply a request to a sketch, and to broadcast
+	public long getDecodeP50Nanos();
+	public long getDecodeP99Nanos();
+	public long getDecodeP999Nanos();
+	public long getApplyP50Nanos();
+	public long getApplyP99Nanos();
+	public long getApplyP999Nanos();
+	public long getBroadcastP50Nanos();
+	public long getBroadcastP99Nanos();
+	public long getBroadcastP999Nanos();
+
+	public int getBoards();
+	public int getClients();
+	public long getShapes();		// on all the boards
+	public long getSegments();		// of the polylines and segments among them
+
+	// messages waiting to be written to clients
+	public int getMaxQueueDepth();
+	public long getQueuedMessages();
+
+	/**
+	 * All of the above, and each client's queue depth, as text
+	 */
+	public String dump();
+}
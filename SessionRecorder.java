@@ -0,0 +1,159 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records every line a SketchServer receives from its clients, with when and from which client, so a real session
+ * can be played back later (see SessionReplay).
+ *
+ * A recording starts with a header line, then one record per event: a kind byte, the microseconds since the record
+ * before (varlong), and the number of the client (varint, numbered from 1 in the order they connected).
+ * A LINE record then has the line as a length-prefixed BinaryCodec frame, so a drag costs about 8 bytes a move.
+ * Any number of threads may record at once; records are buffered, and forced out every second and on close.
+ */
+public class SessionRecorder {
+	public static final String HEADER = "sketch-session 1";			// first line of a recording
+	public static final byte OPEN = 0, LINE = 1, CLOSE = 2;			// kinds of record
+
+	private final OutputStream out;
+	private final BinaryCodec codec = new BinaryCodec();				// encodes the lines
+	private final byte[] head = new byte[1 + 10 + 5];					// a record's kind, time and client
+	private final Map<ClientConnection, Integer> clients = new HashMap<ClientConnection, Integer>();	// -> number
+	private int nextClient = 1;
+	private long last = System.nanoTime();								// time of the latest record
+	private long records = 0;
+	private boolean closed = false;
+
+	public SessionRecorder(Path file) throws IOException {
+		out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+		out.write((HEADER + "\n").getBytes(StandardCharsets.US_ASCII));
+		Thread flusher = new Thread(() -> {
+			try {
+				while (true) {
+					Thread.sleep(1000);
+					flush();
+				}
+			}
+			catch (InterruptedException e) {
+				// shutting down
+			}
+		}, "session-recorder");
+		flusher.setDaemon(true);
+		flusher.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "session-recorder-exit"));
+	}
+
+	/**
+	 * A client has connected
+	 */
+	public synchronized void opened(ClientConnection comm) {
+		clients.put(comm, nextClient);
+		record(OPEN, nextClient++);
+	}
+
+	/**
+	 * A client has sent a line
+	 */
+	public synchronized void received(ClientConnection comm, String line) {
+		Integer client = clients.get(comm);
+		if (client == null || !record(LINE, client)) return;
+		codec.reset();
+		codec.encode(line);
+		write(codec.buffer(), codec.size());
+	}
+
+	/**
+	 * A client has hung up (or been dropped)
+	 */
+	public synchronized void closed(ClientConnection comm) {
+		Integer client = clients.remove(comm);
+		if (client != null) record(CLOSE, client);
+	}
+
+	/**
+	 * Number of records so far
+	 */
+	public synchronized long getRecordCount() {
+		return records;
+	}
+
+	/**
+	 * Writes out the records buffered so far
+	 */
+	public synchronized void flush() {
+		if (closed) return;
+		try {
+			out.flush();
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Writes out the rest and stops recording
+	 */
+	public synchronized void close() {
+		if (closed) return;
+		try {
+			out.close();
+		}
+		catch (IOException e) {
+			System.err.println("couldn't finish the session recording: " + e);
+		}
+		closed = true;
+	}
+
+	/**
+	 * Starts a record (unless recording has stopped)
+	 * @return whether it was started
+	 */
+	private boolean record(byte kind, int client) {
+		if (closed) return false;
+		long now = System.nanoTime();
+		int n = 0;
+		head[n++] = kind;
+		n = putVarlong(head, n, (now - last) / 1000);
+		n = putVarlong(head, n, client);
+		last = now - (now - last) % 1000; // so the rounding doesn't add up over a long session
+		records++;
+		write(head, n);
+		return !closed;
+	}
+
+	private void write(byte[] bytes, int length) {
+		try {
+			out.write(bytes, 0, length);
+		}
+		catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Stops recording after a write has failed (the server goes on regardless)
+	 */
+	private void fail(IOException e) {
+		System.err.println("session recording stopped: " + e);
+		try {
+			out.close();
+		}
+		catch (IOException ignored) {
+		}
+		closed = true;
+	}
+
+	private static int putVarlong(byte[] buf, int n, long v) {
+		while ((v & ~0x7fL) != 0) {
+			buf[n++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[n++] = (byte) v;
+		return n;
+	}
+}
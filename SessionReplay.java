@@ -0,0 +1,340 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a session recorded by a SketchServer run with -record (see SessionRecorder), for a realistic workload
+ * that is the same every time: into a SketchServer in this process, with a connection standing in for each client
+ * that was recorded, or straight into bare sketches (one per board), without the server.
+ * The recording can be played at the speed it happened, some multiple of that, or as fast as possible.
+ *
+ * At the end it prints a digest of the state of every board, which should be the same however the session is played,
+ * and fails if it is not the same on every run, or not the one expected.
+ */
+public class SessionReplay {
+	/**
+	 * One event of the session
+	 */
+	private static class Record {
+		final byte kind;		// SessionRecorder.OPEN, LINE or CLOSE
+		final long at;			// microseconds into the session
+		final int client;
+		final String line;		// for LINE
+
+		Record(byte kind, long at, int client, String line) {
+			this.kind = kind;
+			this.at = at;
+			this.client = client;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * Where a session is played back to
+	 */
+	private interface Target {
+		void opened(int client);
+
+		void received(int client, String line);
+
+		void closed(int client);
+
+		/**
+		 * Waits for everything played to have been applied
+		 * @return the sketch of each board, by name
+		 */
+		Map<String, Sketch> finish() throws InterruptedException;
+	}
+
+	/**
+	 * Stands in for a client of the server: takes whatever the server sends it, and counts it
+	 */
+	private static class ReplayConnection implements ClientConnection {
+		static final AtomicLong messages = new AtomicLong();	// sent to all the stand-ins, in the current run
+		volatile boolean open = true;
+		CountDownLatch joined = null;							// if waiting to hear that it is in
+
+		public void send(Message msg) {
+			messages.incrementAndGet();
+			if (joined != null && msg.text().startsWith("client ")) joined.countDown();
+		}
+
+		public boolean isOpen() {
+			return open;
+		}
+
+		public int getQueueDepth() {
+			return 0;
+		}
+	}
+
+	/**
+	 * Plays a session into a SketchServer, as if its clients had connected to it
+	 */
+	private static class ServerTarget implements Target {
+		private final SketchServer server;
+		private final Map<Integer, ReplayConnection> comms = new HashMap<Integer, ReplayConnection>();
+
+		ServerTarget(int workers, int coalesceMillis) {
+			server = new SketchServer(null, workers);
+			if (coalesceMillis > 0) server.setCoalesceMillis(coalesceMillis);
+		}
+
+		public void opened(int client) {
+			ReplayConnection comm = new ReplayConnection();
+			comms.put(client, comm);
+			server.join(comm);
+		}
+
+		public void received(int client, String line) {
+			ReplayConnection comm = comms.get(client);
+			if (comm != null) server.receive(comm, line);
+		}
+
+		public void closed(int client) {
+			ReplayConnection comm = comms.remove(client);
+			if (comm == null) return;
+			comm.open = false;
+			server.removeCommunicator(comm);
+		}
+
+		public Map<String, Sketch> finish() throws InterruptedException {
+			// a client joining a board is in once everything before it has been applied there; but a client
+			// leaving a board for another takes what it sent meanwhile along, so go round until nothing more comes
+			Map<String, Long> before, after = versions();
+			do {
+				before = after;
+				ForkJoinPool.commonPool().awaitQuiescence(1, TimeUnit.MINUTES);
+				for (Board board : server.getBoards()) {
+					ReplayConnection probe = new ReplayConnection();
+					probe.joined = new CountDownLatch(1);
+					board.join(probe);
+					if (!probe.joined.await(1, TimeUnit.MINUTES)) throw new IllegalStateException("board " + board.getName() + " is stuck");
+					board.leave(probe, null);
+				}
+				after = versions();
+			} while (!after.equals(before));
+			Map<String, Sketch> sketches = new TreeMap<String, Sketch>();
+			for (Board board : server.getBoards()) sketches.put(board.getName(), board.getSketch());
+			return sketches;
+		}
+
+		private Map<String, Long> versions() {
+			Map<String, Long> versions = new HashMap<String, Long>();
+			for (Board board : server.getBoards()) versions.put(board.getName(), board.getVersion());
+			return versions;
+		}
+	}
+
+	/**
+	 * Plays a session straight into a sketch for each board, as the server would apply it but without the server
+	 */
+	private static class SketchTarget implements Target {
+		private final Map<String, MessageHandler> boards = new TreeMap<String, MessageHandler>();	// name -> handler for its sketch
+		private final Map<Integer, String> boardOf = new HashMap<Integer, String>();				// client -> board it is on
+
+		public void opened(int client) {
+			boardOf.put(client, SketchServer.defaultBoard);
+		}
+
+		public void received(int client, String line) {
+			String board = boardOf.get(client);
+			if (board == null) return;
+			// the client's number for the request and any trace stamps are nothing to the sketch
+			int start = 0;
+			while (start < line.length() && (line.charAt(start) == '@' || line.charAt(start) == '%')) {
+				int space = line.indexOf(' ', start);
+				start = space < 0 ? line.length() : space + 1;
+			}
+			String request = line.substring(start);
+			if (request.isEmpty() || request.equals("ids") || request.startsWith("viewport")) return; // nothing to the sketch
+			if (request.startsWith("board ")) {
+				String name = request.substring("board ".length()).trim();
+				if (SketchServer.isBoardName(name)) boardOf.put(client, name);
+				return;
+			}
+			try {
+				boards.computeIfAbsent(board, name -> new MessageHandler(new Sketch())).decode(request);
+			}
+			catch (RuntimeException e) {
+				// as on the server, a malformed request is skipped
+				System.err.println("skipped " + request + ": " + e);
+			}
+		}
+
+		public void closed(int client) {
+			boardOf.remove(client);
+		}
+
+		public Map<String, Sketch> finish() {
+			Map<String, Sketch> sketches = new TreeMap<String, Sketch>();
+			for (Map.Entry<String, MessageHandler> board : boards.entrySet()) {
+				sketches.put(board.getKey(), board.getValue().sketch);
+			}
+			return sketches;
+		}
+	}
+
+	/**
+	 * Reads a recording
+	 */
+	private static List<Record> read(Path file) throws IOException {
+		byte[] buf = Files.readAllBytes(file);
+		byte[] header = (SessionRecorder.HEADER + "\n").getBytes(StandardCharsets.US_ASCII);
+		if (buf.length < header.length || !new String(buf, 0, header.length, StandardCharsets.US_ASCII).equals(new String(header, StandardCharsets.US_ASCII))) {
+			throw new IOException(file + " is not a session recording");
+		}
+		List<Record> records = new ArrayList<Record>();
+		BinaryCodec codec = new BinaryCodec();
+		int[] pos = {header.length};
+		long at = 0;
+		try {
+			while (pos[0] < buf.length) {
+				byte kind = buf[pos[0]++];
+				at += readVarlong(buf, pos);
+				int client = (int) readVarlong(buf, pos);
+				String line = null;
+				if (kind == SessionRecorder.LINE) {
+					int length = (int) readVarlong(buf, pos);
+					if (pos[0] + length > buf.length) break; // cut off mid-line
+					line = length == 0 ? "" : codec.toText(buf, pos[0], length);
+					pos[0] += length;
+				}
+				records.add(new Record(kind, at, client, line));
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			// cut off mid-record (the server was killed while recording): play what there is
+		}
+		return records;
+	}
+
+	private static long readVarlong(byte[] buf, int[] pos) {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			byte b = buf[pos[0]++];
+			value |= (long) (b & 0x7f) << shift;
+			if (b >= 0) return value;
+		}
+		throw new IllegalArgumentException("varlong too long");
+	}
+
+	/**
+	 * Plays the session into the target
+	 * @param speed multiple of the speed it was recorded at (0 for as fast as possible)
+	 * @return the digest of the state it ended in
+	 */
+	private static String play(List<Record> records, Target target, double speed) throws InterruptedException {
+		long start = System.nanoTime();
+		for (Record r : records) {
+			if (speed > 0) {
+				long due = start + (long) (r.at * 1000 / speed);
+				long wait;
+				while ((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+			}
+			switch (r.kind) {
+				case SessionRecorder.OPEN -> target.opened(r.client);
+				case SessionRecorder.LINE -> target.received(r.client, r.line);
+				case SessionRecorder.CLOSE -> target.closed(r.client);
+			}
+		}
+		return digest(target.finish());
+	}
+
+	/**
+	 * A digest of the shapes on every board that has any (in order of board name, then shape id)
+	 */
+	public static String digest(Map<String, Sketch> sketches) {
+		MessageDigest sha;
+		try {
+			sha = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (Map.Entry<String, Sketch> board : new TreeMap<String, Sketch>(sketches).entrySet()) {
+			Sketch.Snapshot shapes = board.getValue().snapshot();
+			if (shapes.isEmpty()) continue;
+			sha.update(("board " + board.getKey() + "\n").getBytes(StandardCharsets.UTF_8));
+			shapes.forEach((shape, id) -> sha.update((id + " " + shape + "\n").getBytes(StandardCharsets.UTF_8)));
+		}
+		StringBuilder hex = new StringBuilder();
+		byte[] d = sha.digest();
+		for (int i = 0; i < 8; i++) hex.append(String.format("%02x", d[i]));
+		return hex.toString();
+	}
+
+	/**
+	 * Usage: SessionReplay file [-speed x | -fast] [-into server|sketch] [-workers n] [-coalesce tickMillis]
+	 *   [-repeat n] [-expect digest]
+	 * -- plays at the recorded speed unless told otherwise, into a SketchServer (with one worker) unless told otherwise
+	 */
+	public static void main(String[] args) throws Exception {
+		Path file = null;
+		double speed = 1;
+		String into = "server";
+		int workers = 1;
+		int coalesceMillis = 0;
+		int repeat = 1;
+		String expect = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "-speed" -> speed = Double.parseDouble(args[++i]);
+				case "-fast" -> speed = 0;
+				case "-into" -> into = args[++i];
+				case "-workers" -> workers = Integer.parseInt(args[++i]);
+				case "-coalesce" -> coalesceMillis = Integer.parseInt(args[++i]);
+				case "-repeat" -> repeat = Integer.parseInt(args[++i]);
+				case "-expect" -> expect = args[++i];
+				default -> {
+					if (args[i].startsWith("-") || file != null) throw new IllegalArgumentException("unknown argument " + args[i]);
+					file = Path.of(args[i]);
+				}
+			}
+		}
+		if (file == null) throw new IllegalArgumentException("no recording given");
+		if (!into.equals("server") && !into.equals("sketch")) throw new IllegalArgumentException("can't play into " + into);
+
+		List<Record> records = read(file);
+		long lines = records.stream().filter(r -> r.kind == SessionRecorder.LINE).count();
+		long clients = records.stream().filter(r -> r.kind == SessionRecorder.OPEN).count();
+		long length = records.isEmpty() ? 0 : records.get(records.size() - 1).at;
+		System.out.printf("# %s: %d lines from %d clients over %.1f s (%d bytes)%n",
+				file, lines, clients, length / 1e6, Files.size(file));
+
+		String first = null;
+		boolean same = true;
+		for (int run = 1; run <= repeat; run++) {
+			ReplayConnection.messages.set(0);
+			Target target = into.equals("server") ? new ServerTarget(workers, coalesceMillis) : new SketchTarget();
+			long start = System.nanoTime();
+			String digest = play(records, target, speed);
+			long nanos = System.nanoTime() - start;
+			System.out.printf("run %d: %d lines into %s in %d ms (%.0f lines/s, %d messages out), state %s%n",
+					run, lines, into, nanos / 1_000_000, lines * 1e9 / Math.max(1, nanos), ReplayConnection.messages.get(), digest);
+			if (first == null) first = digest;
+			else if (!digest.equals(first)) same = false;
+		}
+		if (!same) {
+			System.out.println("the runs ended in different states");
+			System.exit(1);
+		}
+		if (expect != null && !expect.equals(first)) {
+			System.out.println("expected state " + expect + ", got " + first);
+			System.exit(1);
+		}
+	}
+}
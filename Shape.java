@@ -19,6 +19,11 @@ public interface Shape {
 	 */
 	public boolean contains(int x, int y);
 
+	/**
+	 * The box outside of which the shape neither draws anything nor contains any point
+	 */
+	public Bounds getBounds();
+
 	/**
 	 * @return The shape's color
 	 */
@@ -34,4 +39,10 @@ public interface Shape {
 	 */
 	public void draw(Graphics g);
 
+	/**
+	 * A copy of the shape, which can be moved or recolored without affecting this one
+	 * (the sketch never changes a shape once others may be reading it, but changes a copy instead)
+	 */
+	public Shape copy();
+
 }
\ No newline at end of file
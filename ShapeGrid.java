@@ -0,0 +1,199 @@
+import java.util.Arrays;
+
+/**
+ * Spatial index for a Sketch: a uniform grid of square cells, each listing the ids of the shapes
+ * whose bounds overlap it, so a hit test only looks at the shapes near the point.
+ * Shapes too big to be worth spreading over the grid are kept in a separate list that every query checks.
+ *
+ * Immutable: put and remove return a new grid sharing everything they don't change with this one
+ * (the cells are kept in a PersistentIntMap), so a version of the grid can be read by any thread without locking.
+ */
+public final class ShapeGrid {
+	public static final ShapeGrid EMPTY = new ShapeGrid(PersistentIntMap.empty(), new int[0], PersistentIntMap.empty());
+
+	private static final int cellSize = 64;			// pixels per side of a cell
+	private static final int maxCells = 256;		// more cells than this and a shape counts as oversized
+	private static final int maxCell = 1 << 15;		// cells at least this far from the origin count as oversized too
+
+	private final PersistentIntMap<int[]> cells;		// cell key -> ids of the shapes there (never modified)
+	private final int[] oversized;						// shapes in no cell, checked always (never modified)
+	private final PersistentIntMap<Bounds> indexed;		// id -> bounds it was indexed under
+
+	private ShapeGrid(PersistentIntMap<int[]> cells, int[] oversized, PersistentIntMap<Bounds> indexed) {
+		this.cells = cells;
+		this.oversized = oversized;
+		this.indexed = indexed;
+	}
+
+	/**
+	 * The grid with the shape indexed (or re-indexed) under the given bounds
+	 */
+	public ShapeGrid put(int id, Bounds bounds) {
+		Bounds old = indexed.get(id);
+		if (old != null && sameCells(old, bounds)) {
+			return new ShapeGrid(cells, oversized, indexed.put(id, bounds));
+		}
+		ShapeGrid g = old != null ? remove(id) : this;
+		PersistentIntMap<int[]> newCells = g.cells;
+		int[] newOversized = g.oversized;
+		if (isOversized(bounds)) {
+			newOversized = with(newOversized, id);
+		}
+		else {
+			for (int col = cell(bounds.x1); col <= cell(bounds.x2); col++) {
+				for (int row = cell(bounds.y1); row <= cell(bounds.y2); row++) {
+					int key = key(col, row);
+					newCells = newCells.put(key, with(newCells.get(key), id));
+				}
+			}
+		}
+		return new ShapeGrid(newCells, newOversized, g.indexed.put(id, bounds));
+	}
+
+	/**
+	 * The grid without the shape
+	 */
+	public ShapeGrid remove(int id) {
+		Bounds bounds = indexed.get(id);
+		if (bounds == null) return this;
+		if (isOversized(bounds)) {
+			return new ShapeGrid(cells, without(oversized, id), indexed.remove(id));
+		}
+		PersistentIntMap<int[]> newCells = cells;
+		for (int col = cell(bounds.x1); col <= cell(bounds.x2); col++) {
+			for (int row = cell(bounds.y1); row <= cell(bounds.y2); row++) {
+				int key = key(col, row);
+				int[] ids = without(newCells.get(key), id);
+				newCells = ids.length == 0 ? newCells.remove(key) : newCells.put(key, ids);
+			}
+		}
+		return new ShapeGrid(newCells, oversized, indexed.remove(id));
+	}
+
+	/**
+	 * Ids of the shapes whose bounds contain the point, highest (topmost) first
+	 */
+	public int[] candidatesAt(int x, int y) {
+		int col = cell(x), row = cell(y);
+		int[] c = inRange(col) && inRange(row) ? cells.get(key(col, row)) : null;
+		int n = (c == null ? 0 : c.length) + oversized.length;
+		int[] found = new int[n];
+		int count = 0;
+		if (c != null) {
+			for (int id : c) {
+				if (indexed.get(id).contains(x, y)) found[count++] = id;
+			}
+		}
+		for (int id : oversized) {
+			if (indexed.get(id).contains(x, y)) found[count++] = id;
+		}
+		found = Arrays.copyOf(found, count);
+		Arrays.sort(found);
+		// reverse, so the topmost comes first
+		for (int i = 0, j = count - 1; i < j; i++, j--) {
+			int t = found[i]; found[i] = found[j]; found[j] = t;
+		}
+		return found;
+	}
+
+	/**
+	 * Ids of the shapes whose bounds overlap the box, lowest (bottom) first
+	 */
+	public int[] candidatesIn(Bounds box) {
+		long cols = (long) cell(box.x2) - cell(box.x1) + 1, rows = (long) cell(box.y2) - cell(box.y1) + 1;
+		if (cols * rows > cells.size()) {
+			// fewer occupied cells than the box covers: just check every shape (already in order)
+			int[][] found = {new int[16]};
+			int[] count = {0};
+			indexed.forEach((bounds, id) -> {
+				if (bounds.intersects(box)) {
+					if (count[0] == found[0].length) found[0] = Arrays.copyOf(found[0], count[0] * 2);
+					found[0][count[0]++] = id;
+				}
+			});
+			return Arrays.copyOf(found[0], count[0]);
+		}
+		int[] ids = new int[16];
+		int n = 0;
+		for (int col = cell(box.x1); col <= cell(box.x2); col++) {
+			for (int row = cell(box.y1); row <= cell(box.y2); row++) {
+				int[] c = inRange(col) && inRange(row) ? cells.get(key(col, row)) : null;
+				if (c == null) continue;
+				if (n + c.length > ids.length) ids = Arrays.copyOf(ids, Math.max(ids.length * 2, n + c.length));
+				System.arraycopy(c, 0, ids, n, c.length);
+				n += c.length;
+			}
+		}
+		if (n + oversized.length > ids.length) ids = Arrays.copyOf(ids, n + oversized.length);
+		System.arraycopy(oversized, 0, ids, n, oversized.length);
+		n += oversized.length;
+		// a shape is listed in every cell it overlaps: keep it once, and only if it really reaches the box
+		Arrays.sort(ids, 0, n);
+		int kept = 0;
+		for (int i = 0; i < n; i++) {
+			if (i > 0 && ids[i-1] == ids[i]) continue;
+			if (indexed.get(ids[i]).intersects(box)) ids[kept++] = ids[i];
+		}
+		return Arrays.copyOf(ids, kept);
+	}
+
+	private static int cell(int coordinate) {
+		return Math.floorDiv(coordinate, cellSize);
+	}
+
+	private static boolean inRange(int cell) {
+		return cell > -maxCell && cell < maxCell;
+	}
+
+	/**
+	 * Key of a cell: the bits of its column and row (zigzag-coded, so cells near the origin get small keys) interleaved
+	 */
+	private static int key(int col, int row) {
+		return spread((col << 1) ^ (col >> 31)) | (spread((row << 1) ^ (row >> 31)) << 1);
+	}
+
+	/**
+	 * The low 16 bits of v, moved to the even bit positions
+	 */
+	private static int spread(int v) {
+		v &= 0xffff;
+		v = (v | (v << 8)) & 0x00ff00ff;
+		v = (v | (v << 4)) & 0x0f0f0f0f;
+		v = (v | (v << 2)) & 0x33333333;
+		v = (v | (v << 1)) & 0x55555555;
+		return v;
+	}
+
+	private static boolean isOversized(Bounds b) {
+		long cols = (long) cell(b.x2) - cell(b.x1) + 1, rows = (long) cell(b.y2) - cell(b.y1) + 1;
+		return cols * rows > maxCells || !inRange(cell(b.x1)) || !inRange(cell(b.y1))
+				|| !inRange(cell(b.x2)) || !inRange(cell(b.y2));
+	}
+
+	private static boolean sameCells(Bounds a, Bounds b) {
+		return cell(a.x1) == cell(b.x1) && cell(a.y1) == cell(b.y1)
+				&& cell(a.x2) == cell(b.x2) && cell(a.y2) == cell(b.y2);
+	}
+
+	/**
+	 * A copy of ids (which may be null) with id added
+	 */
+	private static int[] with(int[] ids, int id) {
+		if (ids == null) return new int[] {id};
+		int[] more = Arrays.copyOf(ids, ids.length + 1);
+		more[ids.length] = id;
+		return more;
+	}
+
+	/**
+	 * A copy of ids without id
+	 */
+	private static int[] without(int[] ids, int id) {
+		int[] fewer = new int[ids.length - 1];
+		int n = 0;
+		for (int other : ids) {
+			if (other != id && n < fewer.length) fewer[n++] = other;
+		}
+		return fewer;
+	}
+}
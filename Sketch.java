@@ -1,29 +1,140 @@
 import java.awt.*;
-import java.util.*;
+import java.util.function.ObjIntConsumer;
 
 /**
  * Sketch class
+ *
+ * Readers never lock: every change builds a new Snapshot (sharing all it doesn't change with the last one)
+ * and publishes it, so painting and hit testing read a consistent version while ops keep being applied.
+ * Changes themselves are serialized. A shape in a snapshot is never changed; moving or recoloring it
+ * replaces it with a changed copy.
  * @author Aimen Abdulaziz, Dartmouth College, Winter 2022
  */
 
 public class Sketch {
-    private TreeMap<Integer, Shape> idMap;          // id -> shape
-    private int shapeCount = 0;                     // num of shapes added
+    /**
+     * One version of the sketch; never changes, so any thread can read it without locking
+     */
+    public static class Snapshot {
+        private static final Snapshot EMPTY = new Snapshot(PersistentIntMap.empty(), ShapeGrid.EMPTY, 0);
+
+        private final PersistentIntMap<Shape> shapes;   // id -> shape (none of them ever changed)
+        private final ShapeGrid grid;                   // where each shape is, for hit testing and drawing
+        private final int shapeCount;                   // num of shapes added
+
+        private Snapshot(PersistentIntMap<Shape> shapes, ShapeGrid grid, int shapeCount) {
+            this.shapes = shapes;
+            this.grid = grid;
+            this.shapeCount = shapeCount;
+        }
+
+        /**
+         * @param id shape id
+         * @return shape object (not to be changed), or null
+         */
+        public Shape getShape(int id) {
+            return shapes.get(id);
+        }
+
+        public boolean isEmpty() {
+            return shapes.isEmpty();
+        }
+
+        /**
+         * Number of shapes in the sketch now
+         */
+        public int size() {
+            return shapes.size();
+        }
+
+        /**
+         * Number of shapes added so far (does not decrement when a shape is removed)
+         */
+        public int getShapeCount() {
+            return shapeCount;
+        }
+
+        /**
+         * Calls visitor.accept(shape, id) for every shape, from the lowest to the highest id
+         */
+        public void forEach(ObjIntConsumer<Shape> visitor) {
+            shapes.forEach(visitor);
+        }
+
+        /**
+         * Ids of the shapes whose bounds overlap the area, from the lowest to the highest
+         */
+        public int[] idsIn(Bounds area) {
+            return grid.candidatesIn(area);
+        }
+
+        /**
+         * Draws the shapes but one, skipping those entirely outside the graphics' clip
+         * @param g graphics
+         * @param exclude the ID of the shape not to draw (-1 for none)
+         */
+        public void draw(Graphics g, int exclude) {
+            java.awt.Rectangle clip = g.getClipBounds();
+            if (clip == null) {
+                // iterate from the lowest to the highest key
+                shapes.forEach((shape, id) -> {
+                    if (id != exclude) shape.draw(g);
+                });
+                return;
+            }
+            // just the shapes near the clip, still from the lowest to the highest key
+            Bounds area = new Bounds(clip.x, clip.y, clip.x + clip.width - 1, clip.y + clip.height - 1);
+            for (int id : grid.candidatesIn(area)){
+                if (id != exclude) shapes.get(id).draw(g);
+            }
+        }
+
+        /**
+         * Returns the id of the top shape if there are more than one bodies on top of each other
+         * @param x x coordinate of the point
+         * @param y y coordinate of the point
+         * @return the id of the shape at that specific point
+         */
+        public int topMostShapeAt(int x, int y) {
+            // only the shapes whose bounds contain the point, from the highest to the lowest key
+            for (int id : grid.candidatesAt(x, y)){
+                if (shapes.get(id).contains(x, y)) {
+                    return id;
+                }
+            }
+            // return -1 if there is no shape at the place where the mouse is pressed (x, y)
+            return -1;
+        }
+    }
+
+    private volatile Snapshot current = Snapshot.EMPTY;    // latest version, read without locking
+    private boolean trackDirty = false;             // whether to keep track of the area changes touch (for repainting)
+    private Bounds dirty = null;                    // if so: the area touched since it was last taken
 
     /**
-     * Constructor -- initializes an empty map
+     * Constructor -- initializes an empty sketch
      */
     Sketch() {
-        idMap = new TreeMap<>();
     }
 
     /**
-     * Adds a shape to the sketch
+     * The current version of the sketch, to read as much of as needed without it changing underneath
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * Adds a shape to the sketch; the sketch owns it from then on, so it must not be changed by the caller
      * @param shape the shape to be added
      */
     public synchronized void add(Integer id, Shape shape, int count) {
-        idMap.put(id, shape); // add id,shape to the map
-        shapeCount = count;
+        Snapshot s = current;
+        Shape replaced = s.shapes.get(id);
+        if (replaced != null) touched(replaced.getBounds());
+        Bounds bounds = shape.getBounds();
+        current = new Snapshot(s.shapes.put(id, shape), s.grid.put(id, bounds), count); // add id,shape to the map
+        touched(bounds);
     }
 
     /**
@@ -31,52 +142,155 @@ public class Sketch {
      * @param id the ID of the shape
      */
     public synchronized void remove(Integer id) {
-        idMap.remove(id);
+        Snapshot s = current;
+        Shape removed = s.shapes.get(id);
+        if (removed == null) return;
+        current = new Snapshot(s.shapes.remove(id), s.grid.remove(id), s.shapeCount);
+        touched(removed.getBounds());
     }
 
     /**
-     * Draws all the shapes in the sketch
-     * @param g graphics
+     * Moves a shape in the sketch
+     * @param id the ID of the shape
+     * @param dx horizontal distance
+     * @param dy vertical distance
+     * @return whether there was such a shape
+     */
+    public synchronized boolean move(int id, int dx, int dy) {
+        Snapshot s = current;
+        Shape shape = s.shapes.get(id);
+        if (shape == null) return false;
+        touched(shape.getBounds());
+        Shape moved = shape.copy();
+        moved.moveBy(dx, dy);
+        replace(s, id, moved);
+        return true;
+    }
+
+    /**
+     * Recolors a shape in the sketch
+     * @param id the ID of the shape
+     * @param color its new color
+     * @return whether there was such a shape
+     */
+    public synchronized boolean recolor(int id, Color color) {
+        Snapshot s = current;
+        Shape shape = s.shapes.get(id);
+        if (shape == null) return false;
+        Shape recolored = shape.copy();
+        recolored.setColor(color);
+        replace(s, id, recolored);
+        return true;
+    }
+
+    /**
+     * Extends a polyline in the sketch (a stroke still being drawn) through more points
+     * @param id the ID of the polyline
+     * @param points x1, y1, x2, y2, ...
+     * @param count number of points
+     * @return whether there was such a polyline
      */
-    public synchronized void draw(Graphics g) {
-        // iterate through the map from the lowest to the highest key
-        for (Integer shapeID : idMap.navigableKeySet()){
-            idMap.get(shapeID).draw(g);
+    public synchronized boolean extend(int id, int[] points, int count) {
+        Snapshot s = current;
+        if (!(s.shapes.get(id) instanceof Polyline polyline)) return false;
+        Polyline extended = (Polyline) polyline.copy(); // shares the joints so far, so this is cheap
+        for (int i = 0; i < count; i++) {
+            extended.addPoint(points[2*i], points[2*i+1]);
         }
+        replace(s, id, extended); // its bounds cover where it was too, since it only grows
+        return true;
     }
 
     /**
-     * Checks if the map is empty
-     * @return boolean
+     * Publishes the version of s with the shape id replaced by a changed copy
      */
-    public synchronized boolean isEmpty() {
-        return idMap.size() == 0;
+    private void replace(Snapshot s, int id, Shape changed) {
+        Bounds bounds = changed.getBounds();
+        current = new Snapshot(s.shapes.put(id, changed), s.grid.put(id, bounds), s.shapeCount);
+        touched(bounds);
     }
 
     /**
-     * Getter method
-     * @param id shape id
-     * @return shape object
+     * Removes every shape from the sketch (the shape count is kept, so ids are not reused)
+     */
+    public synchronized void clear() {
+        Snapshot s = current;
+        if (trackDirty) {
+            s.shapes.forEach((shape, id) -> touched(shape.getBounds()));
+        }
+        current = new Snapshot(PersistentIntMap.empty(), ShapeGrid.EMPTY, s.shapeCount);
+    }
+
+    /**
+     * Replaces the whole sketch with a version of it (or of another sketch); the area this changes is not tracked
      */
-    public synchronized Shape getShape(int id) {
-        return idMap.get(id);
+    public synchronized void reset(Snapshot version) {
+        current = version;
+        dirty = null;
     }
 
     /**
-     * Getter method for the shapes map
-     * @return map
+     * Starts (or stops) keeping track of the area that changes to the sketch touch, for takeDirty
      */
-    public synchronized TreeMap<Integer, Shape> getMap() {
-        return idMap;
+    public synchronized void setTrackDirty(boolean trackDirty) {
+        this.trackDirty = trackDirty;
+        dirty = null;
+    }
+
+    /**
+     * The area touched by changes since the last call (the shapes' old and new bounds), or null if none
+     */
+    public synchronized Bounds takeDirty() {
+        Bounds d = dirty;
+        dirty = null;
+        return d;
+    }
+
+    private void touched(Bounds bounds) {
+        if (trackDirty) dirty = bounds.union(dirty);
+    }
+
+    /**
+     * Draws the shapes in the sketch, skipping those entirely outside the graphics' clip
+     * @param g graphics
+     */
+    public void draw(Graphics g) {
+        current.draw(g, -1);
+    }
+
+    /**
+     * Draws the shapes in the sketch but one, skipping those entirely outside the graphics' clip
+     * @param g graphics
+     * @param exclude the ID of the shape not to draw (-1 for none)
+     */
+    public void draw(Graphics g, int exclude) {
+        current.draw(g, exclude);
+    }
+
+    /**
+     * Checks if the sketch is empty
+     * @return boolean
+     */
+    public boolean isEmpty() {
+        return current.isEmpty();
+    }
+
+    /**
+     * Getter method
+     * @param id shape id
+     * @return shape object (not to be changed; changes go through the sketch)
+     */
+    public Shape getShape(int id) {
+        return current.getShape(id);
     }
 
     /**
      * Getter method for the number of shapes that has been added so far
      * Count does not decrement when a shape is removed
-     * @return map
+     * @return count
      */
-    public synchronized int getShapeCount() {
-        return shapeCount;
+    public int getShapeCount() {
+        return current.getShapeCount();
     }
 
     /**
@@ -85,14 +299,7 @@ public class Sketch {
      * @param y y coordinate of the point
      * @return the id of the shape at that specific point
      */
-    public synchronized int topMostShapeAt(int x, int y) {
-        // iterate through the map from the highest to the lowest key
-        for (Integer id : idMap.descendingKeySet()){
-            if (idMap.get(id).contains(x, y)) {
-                return id;
-            }
-        }
-        // return -1 if there is no shape at the place where the mouse is pressed (x, y)
-        return -1;
+    public int topMostShapeAt(int x, int y) {
+        return current.topMostShapeAt(x, y);
     }
-}
\ No newline at end of file
+}
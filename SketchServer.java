@@ -1,26 +1,335 @@
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
 
 /**
  * A server to handle sketches: getting requests from the clients,
- * updating the overall state, and passing them on to the clients
+ * updating the overall state, and passing them on to the clients.
+ * It holds any number of named boards, each a sketch of its own (see Board); clients start on the default one.
+ * Several servers can also host the same boards as a cluster, each with clients of its own,
+ * through a ReplicationTransport between them.
  *
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  */
 public class SketchServer {
+	/**
+	 * What to do with a client whose outbound queue has filled up
+	 */
+	public enum OverflowPolicy {
+		DISCONNECT,		// drop the client
+		RESYNC			// throw away its backlog and send the whole current state instead
+	}
+
+	/**
+	 * Which board a client is on, and, while it is moving to another, the lines it has sent since
+	 */
+	private static class Route {
+		Board board;
+		List<String> held = null;
+
+		Route(Board board) {
+			this.board = board;
+		}
+	}
+
+	public static final String defaultBoard = "main";	// the board every client starts on
+	private static final String boardNames = "[\\w.-]{1,64}";
+
 	private ServerSocket listen;						// for accepting connections
-	private ArrayList<SketchServerCommunicator> comms;	// all the connections with clients
-	private Sketch sketch;								// the state of the world
+	private Map<String, Board> boards = new ConcurrentHashMap<String, Board>();	// by name, created when first asked for
+	private Map<ClientConnection, Route> routes = new ConcurrentHashMap<ClientConnection, Route>();
+	private ExecutorService[] workers;					// threads the boards' requests are applied on
+	private AtomicInteger nextWorker = new AtomicInteger();	// the one the next board is given
+	private int queueCapacity = 1024;					// messages a client may fall behind by
+	private OverflowPolicy overflowPolicy = OverflowPolicy.RESYNC;	// when a client falls further behind
+	private volatile ScheduledExecutorService ticker = null;	// if batching: ends each frame, on every board
+	private Path logDir = null;							// if durable: where the boards' logs and snapshots are
+	private OpLog.FsyncPolicy fsyncPolicy;
+	private long fsyncMillis;
+	private long snapshotEvery = 100_000;				// requests between snapshots (0 for none)
+	private ExecutorService snapshotWriter = null;		// writes them, in the background, for every board
+	private ReplicationTransport transport = null;		// if one node of a cluster: to the others
+	private final ServerMetrics metrics = new ServerMetrics(this);	// counters and timings, also over JMX
+	private SampledLog log = new SampledLog(0);			// a sample of the requests received (none by default)
+	private volatile Tracer tracer = null;				// if tracing requests: the time they spend in each stage here
+	private volatile SessionRecorder recorder = null;	// if recording the session: every line received, for replay
 
-	public SketchServer(ServerSocket listen) {
+	/**
+	 * @param numWorkers how many threads to share the boards' requests out among
+	 */
+	public SketchServer(ServerSocket listen, int numWorkers) {
 		this.listen = listen;
-		sketch = new Sketch();
-		comms = new ArrayList<SketchServerCommunicator>();
+		workers = new ExecutorService[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			String name = "board-worker-" + i;
+			workers[i] = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			});
+		}
 	}
 
+	public SketchServer(ServerSocket listen) {
+		this(listen, 1);
+	}
+
+	/**
+	 * The default board's sketch
+	 */
 	public Sketch getSketch() {
-		return sketch;
+		return board(defaultBoard).getSketch();
+	}
+
+	/**
+	 * Sequence number of the last change applied to the default board's sketch and broadcast
+	 */
+	public long getSequence() {
+		return board(defaultBoard).getSequence();
+	}
+
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Makes the metrics visible over JMX, as "sketch:type=ServerMetrics,node=n" (after setReplication, if in a cluster)
+	 */
+	public void registerMetrics() throws Exception {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+				new ObjectName("sketch:type=ServerMetrics,node=" + getNodeId()));
+	}
+
+	/**
+	 * Prints about one in every n requests received (in the background), 0 for none
+	 */
+	public void setLogSampling(int every) {
+		log = new SampledLog(every);
+	}
+
+	/**
+	 * Times the stages of the requests editors have stamped (see Tracer), and passes their stamps on; null to stop
+	 */
+	public void setTracer(Tracer tracer) {
+		this.tracer = tracer;
+	}
+
+	public Tracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * Records every client connecting, each line it sends, and its hanging up (see SessionReplay); null to stop
+	 */
+	public void setRecorder(SessionRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * The boards there are so far
+	 */
+	public Collection<Board> getBoards() {
+		return boards.values();
+	}
+
+	/**
+	 * Every client connected (and joined)
+	 */
+	public Set<ClientConnection> getClients() {
+		return routes.keySet();
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	/**
+	 * Whether broadcasts are being batched per frame tick
+	 */
+	public boolean isCoalescing() {
+		return ticker != null;
+	}
+
+	/**
+	 * Batches broadcasts: requests are still applied as they arrive, but are passed on once per tick,
+	 * with each shape's moves in the tick summed and only its last recolor kept
+	 * @param tickMillis frame length; 0 to broadcast every request immediately
+	 */
+	public void setCoalesceMillis(int tickMillis) {
+		if (ticker != null) ticker.shutdownNow();
+		if (tickMillis <= 0) {
+			ticker = null;
+			for (Board board : boards.values()) board.tick(true); // send what's left, then stop batching
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "frame-ticker");
+			t.setDaemon(true);
+			return t;
+		});
+		// one ticker for all the boards; those with nothing batched up are skipped
+		ticker.scheduleAtFixedRate(() -> {
+			for (Board board : boards.values()) board.tick(false);
+		}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public long getSnapshotEvery() {
+		return snapshotEvery;
+	}
+
+	/**
+	 * How many requests to apply between snapshots of the sketch, when keeping a log (0 for none)
+	 */
+	public void setSnapshotEvery(long snapshotEvery) {
+		this.snapshotEvery = snapshotEvery;
+	}
+
+	public ExecutorService getSnapshotWriter() {
+		return snapshotWriter;
+	}
+
+	/**
+	 * Makes this server one node of a cluster, whose nodes pass requests to each other through the transport.
+	 * Call before any board is created (so before openLog).
+	 */
+	public void setReplication(ReplicationTransport transport) {
+		this.transport = transport;
+		transport.setReceiver(new ReplicationTransport.Receiver() {
+			public void forwarded(String board, String request) {
+				board(board).receiveForwarded(request);
+			}
+
+			public void replicated(String board, long version, String request) {
+				board(board).receiveReplicated(version, request);
+			}
+		});
+	}
+
+	public boolean isReplicating() {
+		return transport != null;
+	}
+
+	/**
+	 * This server's number in its cluster (0 if not in one)
+	 */
+	public int getNodeId() {
+		return transport != null ? transport.getNodeId() : 0;
+	}
+
+	/**
+	 * How many nodes there are in its cluster (1 if not in one)
+	 */
+	public int getNodeCount() {
+		return transport != null ? transport.getNodeCount() : 1;
+	}
+
+	/**
+	 * Which node is the leader of a board, which puts its requests in order; chosen by name, so all nodes agree
+	 */
+	public int leaderOf(String board) {
+		return Math.floorMod(board.hashCode(), getNodeCount());
+	}
+
+	/**
+	 * Whether this server is the leader of a board
+	 */
+	public boolean leads(String board) {
+		return leaderOf(board) == getNodeId();
+	}
+
+	/**
+	 * Passes a request from one of this server's clients on to the board's leader
+	 */
+	public void forward(String board, String request) {
+		transport.forward(leaderOf(board), board, request);
+	}
+
+	/**
+	 * Passes a request applied by this server, as the board's leader, on to the other nodes
+	 */
+	public void replicate(String board, long version, String request) {
+		transport.replicate(board, version, request);
+	}
+
+	/**
+	 * Keeps every request applied to each board in a durable log: the default board's in dir, and any other's in
+	 * dir/boards/name. The default board is rebuilt from what is already there now, any other when first asked for.
+	 * Call before any client connects.
+	 * @param policy when appended requests are forced to the disk (intervalMillis apart, for INTERVAL)
+	 */
+	public void openLog(Path dir, OpLog.FsyncPolicy policy, long intervalMillis) throws IOException {
+		logDir = dir;
+		fsyncPolicy = policy;
+		fsyncMillis = intervalMillis;
+		snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "snapshot-writer");
+			t.setDaemon(true);
+			return t;
+		});
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			for (Board board : boards.values()) board.closeLog();
+		}, "oplog-close"));
+		board(defaultBoard);
+	}
+
+	/**
+	 * The board with the given name, created (and loaded from its log, if durable) the first time it is asked for
+	 */
+	public Board board(String name) {
+		return boards.computeIfAbsent(name, n -> {
+			Board board = new Board(n, this, workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)]);
+			if (logDir != null) {
+				try {
+					Path dir = n.equals(defaultBoard) ? logDir : logDir.resolve("boards").resolve(n);
+					Files.createDirectories(dir);
+					board.openLog(dir, fsyncPolicy, fsyncMillis);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return board;
+		});
+	}
+
+	/**
+	 * One line per board: its clients, version and rough size
+	 */
+	public String boardReport() {
+		StringBuilder report = new StringBuilder();
+		List<Board> sorted = new ArrayList<Board>(boards.values());
+		sorted.sort(Comparator.comparing(Board::getName));
+		for (Board board : sorted) {
+			report.append(String.format("%sboard %s%s: %d clients, version %d, ~%d KB%n",
+					transport != null ? "node " + getNodeId() + " " : "", board.getName(),
+					transport != null && board.isLeading() ? " (leader)" : "",
+					board.getClientCount(), board.getVersion(), board.getMemoryEstimate() / 1024));
+		}
+		return report.toString();
 	}
 
 	/**
@@ -32,34 +341,260 @@ public class SketchServer {
 			SketchServerCommunicator comm = new SketchServerCommunicator(listen.accept(), this);
 			comm.setDaemon(true);
 			comm.start();
-			addCommunicator(comm);
 		}
 	}
 
 	/**
-	 * Adds the communicator to the list of current communicators
+	 * Non-blocking alternative to getConnections: a fixed number of selector loops share all the clients,
+	 * rather than a thread per client. Requires listen to have been opened from a ServerSocketChannel.
 	 */
-	public synchronized void addCommunicator(SketchServerCommunicator comm) {
-		comms.add(comm);
+	public void getConnections(int numLoops) throws IOException {
+		ServerSocketChannel channel = listen.getChannel();
+		if (channel == null) throw new IllegalStateException("listen socket has no channel");
+
+		SelectorLoop[] loops = new SelectorLoop[numLoops];
+		for (int i = 0; i < numLoops; i++) {
+			loops[i] = new SelectorLoop(this, loops, i);
+		}
+		for (int i = 1; i < numLoops; i++) {
+			loops[i].setDaemon(true);
+			loops[i].start();
+		}
+		loops[0].listen(channel);
+		System.out.println("server ready for connections (" + numLoops + " selector loops)");
+		loops[0].run(); // the first loop (which also accepts) runs on this thread
 	}
 
 	/**
-	 * Removes the communicator from the list of current communicators
+	 * Brings a new client in, on the default board
 	 */
-	public synchronized void removeCommunicator(SketchServerCommunicator comm) {
-		comms.remove(comm);
+	public void join(ClientConnection comm) {
+		Board board = board(defaultBoard);
+		SessionRecorder r = recorder;
+		if (r != null) r.opened(comm);
+		routes.put(comm, new Route(board));
+		board.join(comm);
 	}
 
 	/**
-	 * Sends the message from the one communicator to all (including the originator)
+	 * Removes the communicator from whichever board it is on
 	 */
-	public synchronized void broadcast(String msg) {
-		for (SketchServerCommunicator comm : comms) {
-			comm.send(msg);
+	public void removeCommunicator(ClientConnection comm) {
+		Route route = routes.remove(comm);
+		if (route != null) {
+			// not on this thread, which may be a board's worker dropping a client it couldn't send to,
+			// and mustn't wait for room in a ring (it could be one it is the consumer of)
+			Board board = route.board;
+			ForkJoinPool.commonPool().execute(() -> board.leave(comm, null));
 		}
+		SessionRecorder r = recorder;
+		if (r != null) r.closed(comm);
+	}
+
+	/**
+	 * Version of the default board's sketch: the number of requests applied to it so far
+	 */
+	public long getVersion() {
+		return board(defaultBoard).getVersion();
+	}
+
+	/**
+	 * Replaces whatever a client has with the current state of the board it is on
+	 */
+	public Message resyncMessage(ClientConnection comm) {
+		Route route = routes.get(comm);
+		return (route != null ? route.board : board(defaultBoard)).resyncMessage(comm);
+	}
+
+	/**
+	 * Handles a line from one of the clients: "board name" moves it to that board,
+	 * and anything else is a request for the board it is on
+	 */
+	public void receive(ClientConnection from, String request) {
+		log.sample(request);
+		Route route = routes.get(from);
+		if (route == null) return; // hung up
+		SessionRecorder r = recorder;
+		if (r != null) r.received(from, request);
+		route(from, route, request);
 	}
 
+	/**
+	 * Passes a line from a client on along its route (even if the client has hung up since sending it)
+	 */
+	private void route(ClientConnection from, Route route, String request) {
+		synchronized (route) {
+			if (route.held != null) {
+				// still moving; these are for the board it is moving to, once it is there
+				route.held.add(request);
+			}
+			else if (request.startsWith("board ")) {
+				moveTo(from, route, request.substring("board ".length()).trim());
+			}
+			else {
+				route.board.receive(from, request);
+			}
+		}
+	}
+
+	/**
+	 * Whether a client may name a board that (letters, digits, '_', '.' and '-', up to 64 of them)
+	 */
+	public static boolean isBoardName(String name) {
+		return name.matches(boardNames);
+	}
+
+	/**
+	 * Moves a client to another board: once the board it is on has let it go (so has sent it everything it was owed),
+	 * it is told to clear its sketch and joins the other one, which sends it the state there and a new client number
+	 */
+	private void moveTo(ClientConnection comm, Route route, String name) {
+		if (!isBoardName(name)) {
+			System.err.println("not a board name: " + name);
+			return;
+		}
+		Board to;
+		try {
+			to = board(name);
+		}
+		catch (UncheckedIOException e) {
+			System.err.println("couldn't open board " + name + ": " + e.getCause());
+			return;
+		}
+		Board from = route.board;
+		if (to == from) return;
+		route.held = new ArrayList<String>();
+		route.board = to;
+		from.leave(comm, () -> {
+			// not on from's worker, which mustn't wait for room in another board's ring (it could be to's too)
+			ForkJoinPool.commonPool().execute(() -> {
+				to.moveIn(comm); // told to clear its sketch by to's worker, which alone can build a resync of to
+				synchronized (route) {
+					List<String> held = route.held;
+					route.held = null;
+					// sent before it hung up, if it has, so still owed to the board
+					for (String line : held) route(comm, route, line);
+				}
+			});
+		});
+	}
+
+	/**
+	 * Usage: SketchServer [nio [loops]] [-queue capacity] [-overflow disconnect|resync] [-coalesce tickMillis]
+	 *   [-log dir [-fsync none|always|millis] [-snapshot requests]] [-workers n] [-report seconds] [-cluster nodes]
+	 *   [-sample n] [-trace file] [-record file]
+	 * -- thread per client by default, or non-blocking selector loops;
+	 * one request in every n received is printed (1000 by default, 0 for none);
+	 * the stages of the requests editors have stamped are timed and written to the file (per node: file.node-i);
+	 * every line received is recorded in the file, to be played back by SessionReplay (per node: file.node-i);
+	 * a cluster runs that many nodes in this process, on ports 4242 and up, connected by a LoopbackTransport
+	 */
 	public static void main(String[] args) throws Exception {
-		new SketchServer(new ServerSocket(4242)).getConnections();
+		boolean nio = false;
+		int numLoops = Runtime.getRuntime().availableProcessors();
+		int queueCapacity = 1024;
+		OverflowPolicy overflowPolicy = OverflowPolicy.RESYNC;
+		int coalesceMillis = 0;
+		Path logDir = null;
+		OpLog.FsyncPolicy fsync = OpLog.FsyncPolicy.INTERVAL;
+		long fsyncMillis = 50;
+		long snapshotEvery = 100_000;
+		int numWorkers = Runtime.getRuntime().availableProcessors();
+		int reportSeconds = 0;
+		int numNodes = 1;
+		int sampleEvery = 1000;
+		Path traceFile = null;
+		Path recordFile = null;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "nio" -> {
+					nio = true;
+					if (i+1 < args.length && args[i+1].matches("\\d+")) numLoops = Integer.parseInt(args[++i]);
+				}
+				case "-queue" -> queueCapacity = Integer.parseInt(args[++i]);
+				case "-overflow" -> overflowPolicy = OverflowPolicy.valueOf(args[++i].toUpperCase());
+				case "-coalesce" -> coalesceMillis = Integer.parseInt(args[++i]);
+				case "-log" -> logDir = Path.of(args[++i]);
+				case "-snapshot" -> snapshotEvery = Long.parseLong(args[++i]);
+				case "-workers" -> numWorkers = Integer.parseInt(args[++i]);
+				case "-report" -> reportSeconds = Integer.parseInt(args[++i]);
+				case "-cluster" -> numNodes = Integer.parseInt(args[++i]);
+				case "-sample" -> sampleEvery = Integer.parseInt(args[++i]);
+				case "-trace" -> traceFile = Path.of(args[++i]);
+				case "-record" -> recordFile = Path.of(args[++i]);
+				case "-fsync" -> {
+					String f = args[++i];
+					if (f.matches("\\d+")) {
+						fsync = OpLog.FsyncPolicy.INTERVAL;
+						fsyncMillis = Long.parseLong(f);
+					}
+					else {
+						fsync = OpLog.FsyncPolicy.valueOf(f.toUpperCase());
+					}
+				}
+				default -> throw new IllegalArgumentException("unknown argument " + args[i]);
+			}
+		}
+
+		LoopbackTransport[] transports = numNodes > 1 ? LoopbackTransport.cluster(numNodes) : null;
+		SketchServer[] servers = new SketchServer[numNodes];
+		for (int node = 0; node < numNodes; node++) {
+			SketchServer server;
+			if (nio) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				channel.bind(new InetSocketAddress(4242 + node));
+				server = new SketchServer(channel.socket(), numWorkers);
+			}
+			else {
+				server = new SketchServer(new ServerSocket(4242 + node), numWorkers);
+			}
+			server.setQueueCapacity(queueCapacity);
+			server.setOverflowPolicy(overflowPolicy);
+			server.setSnapshotEvery(snapshotEvery);
+			server.setLogSampling(sampleEvery);
+			if (transports != null) server.setReplication(transports[node]);
+			if (traceFile != null) {
+				Tracer tracer = new Tracer(transports != null ? "server node " + node : "server");
+				tracer.exportTo(transports != null ? traceFile.resolveSibling(traceFile.getFileName() + ".node-" + node) : traceFile, 5);
+				server.setTracer(tracer);
+			}
+			if (recordFile != null) {
+				server.setRecorder(new SessionRecorder(transports != null ? recordFile.resolveSibling(recordFile.getFileName() + ".node-" + node) : recordFile));
+			}
+			server.registerMetrics();
+			if (logDir != null) server.openLog(transports != null ? logDir.resolve("node-" + node) : logDir, fsync, fsyncMillis);
+			if (coalesceMillis > 0) server.setCoalesceMillis(coalesceMillis);
+			servers[node] = server;
+		}
+		if (reportSeconds > 0) {
+			ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "board-report");
+				t.setDaemon(true);
+				return t;
+			});
+			reporter.scheduleAtFixedRate(() -> {
+				for (SketchServer server : servers) System.out.print(server.boardReport() + server.getMetrics().dump());
+			}, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+		}
+		// every node but the first accepts on a thread of its own
+		for (int node = 1; node < numNodes; node++) {
+			SketchServer server = servers[node];
+			boolean selectors = nio;
+			int loops = numLoops;
+			Thread t = new Thread(() -> {
+				try {
+					if (selectors) server.getConnections(loops);
+					else server.getConnections();
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "node-" + node);
+			t.setDaemon(true);
+			t.start();
+		}
+		SketchServer server = servers[0];
+		if (nio) server.getConnections(numLoops);
+		else server.getConnections();
 	}
-}
\ No newline at end of file
+}
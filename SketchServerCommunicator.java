@@ -1,6 +1,7 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handles communication between the server and one client, for SketchServer
@@ -8,23 +9,84 @@ import java.util.TreeMap;
  * @author Chris Bailey-Kellogg, Dartmouth CS 10, Fall 2012; revised Winter 2014 to separate SketchServerCommunicator
  * @author Aimen Abdulaziz, Dartmouth College, Winter 2022
  */
-public class SketchServerCommunicator extends Thread {
+public class SketchServerCommunicator extends Thread implements ClientConnection {
 	private Socket sock;					// to talk with client
-	private BufferedReader in;				// from client
-	private PrintWriter out;				// to client
+	private LineReader in;					// from client
+	private OutputStream out;				// to client
 	private SketchServer server;			// handling communication for
 
+	private ArrayBlockingQueue<Message> outbound;	// messages waiting for the writer
+	private Thread writer;							// drains outbound into out
+	private AtomicBoolean closed = new AtomicBoolean(false);	// set once the client has gone (or been dropped)
+	private volatile boolean binary = false;		// whether the client has asked for binary frames
+
 	public SketchServerCommunicator(Socket sock, SketchServer server) {
 		this.sock = sock;
 		this.server = server;
+		outbound = new ArrayBlockingQueue<Message>(server.getQueueCapacity());
+	}
+
+	public boolean isOpen() {
+		return !closed.get();
+	}
+
+	public int getQueueDepth() {
+		return outbound.size();
+	}
+
+	@Override
+	public String toString() {
+		return String.valueOf(sock.getRemoteSocketAddress());
 	}
 
 	/**
-	 * Sends a message to the client
-	 * @param msg
+	 * Queues a message for the client; never waits on the client's socket.
+	 * If the client has fallen a whole queue behind, the server's overflow policy decides what happens.
+	 * @param msg one or more protocol lines
 	 */
-	public void send(String msg) {
-		out.println(msg);
+	public void send(Message msg) {
+		if (closed.get()) return;
+		if (!outbound.offer(msg)) {
+			switch (server.getOverflowPolicy()) {
+				case DISCONNECT -> {
+					System.out.println("dropping a client that fell " + outbound.size() + " messages behind");
+					close();
+				}
+				case RESYNC -> {
+					// everything queued is superseded by the current state of the world
+					outbound.clear();
+					outbound.offer(server.resyncMessage(this));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes queued messages to the client, flushing only once the queue has been emptied.
+	 * Once the client has asked for binary frames, the next message is preceded by the answer,
+	 * and it and everything after go as frames.
+	 */
+	private void drain() {
+		boolean framing = false;	// whether the answer has been written
+		try {
+			while (!closed.get()) {
+				Message msg = outbound.take();
+				do {
+					if (binary && !framing) {
+						out.write(BinaryCodec.HELLO_LINE);
+						framing = true;
+					}
+					out.write(framing ? msg.frames() : msg.bytes());
+				} while ((msg = outbound.poll()) != null);
+				out.flush();
+			}
+		}
+		catch (InterruptedException e) {
+			// closed
+		}
+		catch (IOException e) {
+			close();
+		}
 	}
 
 	/**
@@ -35,39 +97,61 @@ public class SketchServerCommunicator extends Thread {
 			System.out.println("someone connected");
 
 			// Communication channel
-			in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-			out = new PrintWriter(sock.getOutputStream(), true);
+			in = new LineReader(sock.getInputStream());
+			out = new BufferedOutputStream(sock.getOutputStream(), 8192);
+			writer = new Thread(this::drain, getName() + "-writer");
+			writer.setDaemon(true);
+			writer.start();
 
-			// Tell the new client the current state of the world
-			// TODO: YOUR CODE HERE
-			TreeMap<Integer, Shape> idMap = server.getSketch().getMap();
-			int shapeCount = server.getSketch().getShapeCount();
-			for (Integer id : idMap.navigableKeySet()){
-				// tell the new clients to add the shapes with the same ID as the current client
-				send("add " + id + " " + shapeCount + " " + idMap.get(id).toString());
-			}
-
-			// Keep getting and handling messages from the client
-			// TODO: YOUR CODE HERE
-			String line;
-			while ((line = in.readLine()) != null) {
-				// print out what has been read
-				System.out.println(line);
+			// Tell the new client the current state of the world, then include it in broadcasts
+			server.join(this);
 
-				// make a new MessageHandler object that will call the appropriate method to handle the requests
-				MessageHandler handler = new MessageHandler(server.getSketch());
-				handler.decode(line);
-				server.broadcast(line); // tell other clients
+			// Keep getting and handling messages from the client: lines, until it asks for frames
+			BinaryCodec codec = null;
+			while (true) {
+				String request;
+				if (codec == null) {
+					CharSequence line = in.readLine();
+					if (line == null) break;
+					if (BinaryCodec.isHello(line)) {
+						codec = new BinaryCodec();
+						binary = true;
+						continue;
+					}
+					long start = System.nanoTime();
+					request = line.toString();
+					server.getMetrics().decoded(System.nanoTime() - start);
+				}
+				else {
+					if (!in.readFrame()) break;
+					long start = System.nanoTime();
+					request = codec.toText(in.frameBuffer(), in.frameStart(), in.frameLength());
+					server.getMetrics().decoded(System.nanoTime() - start);
+				}
+				server.receive(this, request);
 			}
+		}
+		catch (IOException e) {
+			if (!closed.get()) e.printStackTrace();
+		}
+		finally {
+			close();
+		}
+	}
 
-			// Clean up -- note that also remove self from server's list, so it doesn't broadcast here
-			server.removeCommunicator(this);
-			out.close();
-			in.close();
+	/**
+	 * Clean up -- note that also remove self from server's list, so it doesn't broadcast here
+	 */
+	private void close() {
+		if (!closed.compareAndSet(false, true)) return;
+		server.removeCommunicator(this);
+		if (writer != null) writer.interrupt();
+		outbound.clear();
+		try {
 			sock.close();
 		}
 		catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+}
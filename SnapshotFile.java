@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Point-in-time copies of a sketch on disk, so a server can start from the latest one plus the end of its op log
+ * rather than replay every request ever made: how long that takes depends on the size of the board, not its history.
+ *
+ * The snapshot after the first v requests is the file "snap-" and v ".bin": a header (magic, v, shape count),
+ * each shape as the BinaryCodec frame of the request that adds it, and a CRC-32C of all that.
+ * It is written to a temporary file, forced and renamed into place, so a snapshot is either whole or not there.
+ * Loading maps the file, checks it in one pass, and only then applies the frames.
+ */
+public class SnapshotFile {
+	private static final int magic = 0x534b5331;		// "SKS1"
+	private static final int headerSize = 4 + 8 + 4;
+	private static final int chunk = 1 << 16;			// bytes encoded before each write
+
+	/**
+	 * Writes a snapshot of the sketch, as it was after version requests, into dir
+	 * @return the number of bytes written
+	 */
+	public static long write(Path dir, long version, Sketch.Snapshot snapshot) throws IOException {
+		Path tmp = dir.resolve(name(version) + ".tmp");
+		CRC32C crc = new CRC32C();
+		long[] size = {0};
+		try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			header.putInt(magic).putLong(version).putInt(snapshot.getShapeCount()).flip();
+			crc.update(header.duplicate());
+			size[0] += write(out, header);
+
+			BinaryCodec codec = new BinaryCodec();
+			StringBuilder add = new StringBuilder();
+			int count = snapshot.getShapeCount();
+			try {
+				snapshot.forEach((shape, id) -> {
+					add.setLength(0);
+					add.append("add ").append(id).append(' ').append(count).append(' ').append(shape);
+					codec.encode(add);
+					if (codec.size() >= chunk) size[0] += flush(out, codec, crc);
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			size[0] += flush(out, codec, crc);
+
+			ByteBuffer trailer = ByteBuffer.allocate(4);
+			trailer.putInt((int) crc.getValue()).flip();
+			size[0] += write(out, trailer);
+			out.force(true);
+		}
+		Files.move(tmp, dir.resolve(name(version)), StandardCopyOption.ATOMIC_MOVE);
+		try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+			d.force(true);
+		}
+		catch (IOException e) {
+			// not supported here
+		}
+		return size[0];
+	}
+
+	/**
+	 * Writes out (and empties) what the codec holds
+	 */
+	private static int flush(FileChannel out, BinaryCodec codec, CRC32C crc) {
+		crc.update(codec.buffer(), 0, codec.size());
+		try {
+			int n = write(out, ByteBuffer.wrap(codec.buffer(), 0, codec.size()));
+			codec.reset();
+			return n;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static int write(FileChannel out, ByteBuffer buf) throws IOException {
+		int n = buf.remaining();
+		while (buf.hasRemaining()) out.write(buf);
+		return n;
+	}
+
+	/**
+	 * Applies the newest snapshot in dir that checks out (through the handler, to its sketch)
+	 * @return its version, or 0 if there is none
+	 */
+	public static long loadLatest(Path dir, MessageHandler handler) throws IOException {
+		if (!Files.isDirectory(dir)) return 0;
+		try (Stream<Path> files = Files.list(dir)) {
+			// left over from a write that never finished
+			for (Path p : (Iterable<Path>) files::iterator) {
+				if (p.getFileName().toString().matches("snap-\\d+\\.bin\\.tmp")) Files.delete(p);
+			}
+		}
+		List<Long> versions = versions(dir);
+		for (int i = versions.size() - 1; i >= 0; i--) {
+			long version = versions.get(i);
+			if (load(dir.resolve(name(version)), version, handler)) return version;
+			System.err.println("snapshot " + name(version) + " is damaged; trying an older one");
+		}
+		return 0;
+	}
+
+	/**
+	 * Applies one snapshot, if it checks out
+	 * @return whether it did
+	 */
+	private static boolean load(Path path, long version, MessageHandler handler) throws IOException {
+		try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = in.size();
+			if (size < headerSize + 4 || size > Integer.MAX_VALUE) return false;
+			MappedByteBuffer map = in.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			int end = (int) size - 4;
+			// check it all before applying any of it
+			CRC32C crc = new CRC32C();
+			crc.update(map.duplicate().limit(end));
+			if ((int) crc.getValue() != map.getInt(end)) return false;
+			if (map.getInt(0) != magic || map.getLong(4) != version) return false;
+
+			byte[] frame = new byte[256];
+			int pos = headerSize;
+			while (pos < end) {
+				int length = 0, shift = 0;
+				byte b;
+				do {
+					b = map.get(pos++);
+					length |= (b & 0x7f) << shift;
+					shift += 7;
+				} while (b < 0);
+				if (length > frame.length) frame = new byte[Math.max(length, frame.length * 2)];
+				map.get(pos, frame, 0, length);
+				handler.decode(frame, 0, length);
+				pos += length;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Deletes all but the newest few snapshots in dir
+	 * @return the version of the oldest one kept (0 if none)
+	 */
+	public static long retain(Path dir, int keep) throws IOException {
+		List<Long> versions = versions(dir);
+		int drop = Math.max(0, versions.size() - keep);
+		for (int i = 0; i < drop; i++) {
+			Files.delete(dir.resolve(name(versions.get(i))));
+		}
+		return drop < versions.size() ? versions.get(drop) : 0;
+	}
+
+	/**
+	 * Versions of the snapshots in dir, oldest first
+	 */
+	private static List<Long> versions(Path dir) throws IOException {
+		List<Long> versions = new ArrayList<Long>();
+		try (Stream<Path> files = Files.list(dir)) {
+			files.map(p -> p.getFileName().toString()).filter(n -> n.matches("snap-\\d+\\.bin")).sorted()
+					.forEach(n -> versions.add(Long.parseLong(n.substring("snap-".length(), n.length() - ".bin".length()))));
+		}
+		return versions;
+	}
+
+	private static String name(long version) {
+		return String.format("snap-%016d.bin", version);
+	}
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayDeque;
+
+/**
+ * An editor's sketch as its user should see it: the sketch as the server has it (as far as the server's messages
+ * have got), with the editor's own requests that the server has not yet confirmed applied on top,
+ * so that a move, recolor, delete or new shape shows at once rather than a round trip later.
+ *
+ * Each request is numbered ("@seq request"); the server passes it on tagged "@client:seq" once it has applied it,
+ * which confirms it and every earlier one. Whenever the server's sketch changes, the view is rebuilt from it
+ * (sharing its snapshot, so that is cheap) with the requests still unconfirmed applied again:
+ * one the server has put after someone else's ends up after it here too, and one whose shape
+ * someone else deleted in the meantime comes to nothing.
+ *
+ * The server also issues each editor blocks of shape ids, so the shapes it adds never clash with anyone else's.
+ * Safe to use from the GUI thread and the communicator's at once.
+ */
+public class Speculation implements MessageHandler.Control {
+	private static final int idsLow = 16;		// ask for more ids when fewer than this are left
+
+	/**
+	 * A request applied here but not yet confirmed by the server
+	 */
+	private static class Pending {
+		final int seq;
+		final String request;
+
+		Pending(int seq, String request) {
+			this.seq = seq;
+			this.request = request;
+		}
+	}
+
+	private final Sketch confirmed = new Sketch();		// as the server has it
+	private final Sketch view = new Sketch();			// confirmed, with the pending requests applied
+	private final MessageHandler applier = new MessageHandler(view);	// applies pending requests to the view
+	private final ArrayDeque<Pending> pending = new ArrayDeque<Pending>();	// in the order sent
+	private int nextSeq = 1;							// number for the next request
+	private int clientId = 0;							// the server's number for this editor (0 until it says)
+	private Bounds speculated = null;					// area of the view the pending requests have touched
+	private Bounds local = null;						// area changed by requests applied since the editor last looked
+	private boolean rebuild = false;					// whether requests have been confirmed since the view was built
+	private int nextId = 0, idEnd = 0;					// ids nextId .. idEnd-1 are issued to us and unused
+	private int moreFirst = 0, moreEnd = 0;				// a further block, if already issued
+	private boolean idsAsked = false;					// whether more ids have been asked for and not yet issued
+
+	public Speculation() {
+		confirmed.setTrackDirty(true);
+		view.setTrackDirty(true);
+	}
+
+	/**
+	 * The sketch as the server has it, for the server's messages to be applied to
+	 */
+	public Sketch confirmed() {
+		return confirmed;
+	}
+
+	/**
+	 * The sketch with this editor's unconfirmed requests applied, for showing
+	 */
+	public Sketch view() {
+		return view;
+	}
+
+	/**
+	 * Applies one of this editor's requests to the view at once
+	 * @return the request numbered, to send to the server
+	 */
+	public synchronized String apply(String request) {
+		int seq = nextSeq++;
+		pending.add(new Pending(seq, request));
+		applier.decode(request);
+		Bounds changed = view.takeDirty();
+		if (changed != null) {
+			speculated = changed.union(speculated);
+			local = changed.union(local);
+		}
+		return "@" + seq + " " + request;
+	}
+
+	/**
+	 * The area of the view changed by requests applied since the last call (null if none)
+	 */
+	public synchronized Bounds takeLocalChange() {
+		Bounds l = local;
+		local = null;
+		return l;
+	}
+
+	/**
+	 * Brings the view up to date with what the server has said since the last call
+	 * @return the area of the view that may have changed (null if none)
+	 */
+	public synchronized Bounds serverChanged() {
+		Bounds changed = confirmed.takeDirty();
+		if (changed == null && !rebuild) return null;
+		rebuild = false;
+		// what the pending requests did to the old view, and what they do to the new one, may both have changed
+		Bounds area = changed != null ? changed.union(speculated) : speculated;
+		view.reset(confirmed.snapshot());
+		for (Pending p : pending) {
+			applier.decode(p.request);
+		}
+		speculated = view.takeDirty();
+		return speculated != null ? speculated.union(area) : area;
+	}
+
+	/**
+	 * Number of requests sent but not yet confirmed
+	 */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * The next shape id issued to this editor, or -1 if it has none left
+	 */
+	public synchronized int nextId() {
+		if (nextId == idEnd && moreFirst < moreEnd) {
+			nextId = moreFirst;
+			idEnd = moreEnd;
+			moreFirst = moreEnd = 0;
+		}
+		return nextId < idEnd ? nextId++ : -1;
+	}
+
+	/**
+	 * Whether it is time to ask the server for more ids (true just once per request for them)
+	 */
+	public synchronized boolean shouldAskForIds() {
+		if (idsAsked || clientId == 0 || (idEnd - nextId) + (moreEnd - moreFirst) >= idsLow) return false;
+		idsAsked = true;
+		return true;
+	}
+
+	@Override
+	public synchronized void clientId(int id) {
+		clientId = id;
+		idsAsked = false; // an answer to an earlier ask may have been lost in a resync
+	}
+
+	@Override
+	public synchronized void idsIssued(int first, int count) {
+		if (nextId == idEnd) {
+			nextId = first;
+			idEnd = first + count;
+		}
+		else {
+			moreFirst = first;
+			moreEnd = first + count;
+		}
+		idsAsked = false;
+	}
+
+	@Override
+	public synchronized void confirmed(int client, int seq) {
+		if (client != clientId) return; // someone else's
+		while (!pending.isEmpty() && pending.peek().seq <= seq) {
+			pending.poll();
+			rebuild = true;
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opt-in tracing of requests from one editor's input to the other editors' repaints, a histogram per stage.
+ *
+ * A tracing editor stamps each numbered request with when it was made ("@seq %origin request", in microseconds
+ * since the epoch), and a tracing server passes the stamp on along with its own, when it broadcast the request
+ * ("@client:seq %origin %broadcast request"). The server times the stages up to the broadcast, and each tracing
+ * editor that receives the request times the rest, so each process has the stages it saw. The stages that cross
+ * from one process to another are only as good as the agreement between their clocks (exact on one machine).
+ */
+public class Tracer {
+	/**
+	 * The stages a request goes through
+	 */
+	public enum Stage {
+		SEND,		// editor's input to the server receiving it (sending, and the network)
+		QUEUE,		// waiting for its board's worker
+		APPLY,		// applying it to the server's sketch
+		HOLD,		// held back for the end of the frame (if batching), then broadcast
+		FANOUT,		// server's broadcast to another editor decoding it (its queue there, and the network)
+		REPAINT,	// that editor decoding it to having repainted the change
+		TOTAL		// editor's input to another editor's repaint
+	}
+
+	// microseconds since the epoch, as System.nanoTime() counts them (so as cheap, and never going back)
+	private static final long epochMicros;
+	private static final long nanoBase = System.nanoTime();
+	static {
+		Instant start = Instant.now();
+		epochMicros = start.getEpochSecond() * 1_000_000 + start.getNano() / 1000;
+	}
+
+	private final String who;						// which process this is, for the file
+	private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+	public Tracer(String who) {
+		this.who = who;
+		for (int i = 0; i < stages.length; i++) stages[i] = new LatencyHistogram();
+	}
+
+	/**
+	 * Microseconds since the epoch, now
+	 */
+	public static long now() {
+		return micros(System.nanoTime());
+	}
+
+	/**
+	 * Microseconds since the epoch, at the given System.nanoTime()
+	 */
+	public static long micros(long nanoTime) {
+		return epochMicros + (nanoTime - nanoBase) / 1000;
+	}
+
+	/**
+	 * Counts the time one request spent in a stage (from and to in microseconds since the epoch)
+	 */
+	public void record(Stage stage, long from, long to) {
+		stages[stage.ordinal()].record((to - from) * 1000);
+	}
+
+	/**
+	 * Writes the distribution of each stage this process has seen so far, as tab-separated lines
+	 * (stage, count, then percentiles and maximum in microseconds), replacing whatever the file had
+	 */
+	public void export(Path file) throws IOException {
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(tmp))) {
+			out.printf("# %s, as of %s%n", who, Instant.now());
+			out.println("stage\tcount\tp50_us\tp90_us\tp99_us\tp999_us\tmax_us");
+			for (Stage stage : Stage.values()) {
+				LatencyHistogram h = stages[stage.ordinal()];
+				long count = h.getCount();
+				if (count == 0) continue;
+				out.printf("%s\t%d\t%d\t%d\t%d\t%d\t%d%n", stage.name().toLowerCase(), count, h.percentile(0.5) / 1000,
+						h.percentile(0.9) / 1000, h.percentile(0.99) / 1000, h.percentile(0.999) / 1000, h.getMax() / 1000);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Exports to the file every few seconds, and once more when the JVM exits
+	 */
+	public void exportTo(Path file, int everySeconds) {
+		Runnable export = () -> {
+			try {
+				export(file);
+			}
+			catch (IOException e) {
+				System.err.println("couldn't write the trace to " + file + ": " + e);
+			}
+		};
+		ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "trace-export");
+			t.setDaemon(true);
+			return t;
+		});
+		exporter.scheduleAtFixedRate(export, everySeconds, everySeconds, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(export, "trace-export-exit"));
+	}
+}